@@ -0,0 +1,300 @@
+package ImageProcessing;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This software falls under the MIT license, as follows:
+ * Copyright (C) 2012
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * <p/>
+ * JMH benchmarks for every operator on Image, over synthetic images from 256x256 up to 8K and the sample images in
+ * the repository. The input is a parameter, so JMH's -p option picks which ones to run, and the images and everything
+ * built from them are made once per trial so only the operation itself is timed. Results are returned for JMH to
+ * consume, which stops the JIT throwing the work away.
+ * <p/>
+ * Each benchmark reports operations per second, and a megapixels counter alongside it that JMH turns into MP/s, so
+ * results for different input sizes can be compared directly. Bytes allocated per operation come from JMH's gc
+ * profiler, -prof gc.
+ * <p/>
+ * Usage: ImageBenchmarks [JMH options], for example ImageBenchmarks convolveImage -p input=1024x1024 -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ImageBenchmarks {
+    /**
+     * Either a synthetic image's size or a sample image, read relative to the working directory.
+     */
+    @Param({"256x256", "512x512", "1024x1024", "2048x2048", "3840x2160", "7680x4320", "test.png", "new-york.jpg"})
+    public String input;
+
+    private BufferedImage source;
+    private double megapixels;
+    private Image image;
+    private PlanarImage planarImage;
+    private Image nonMax;
+    private BinaryImage binaryEdges;
+    private float[][] channelKernel;
+    private Workspace workspace;
+    private Image edges;
+    private PlanarImage planarEdges;
+    private CannyDetector detector;
+    private ImageGraph graph;
+    private ImageGraph.Node graphCanny;
+
+    public static void main(String[] args) throws Exception {
+        org.openjdk.jmh.Main.main(args);
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        String[] size = input.split("x");
+        if (size.length == 2 && size[0].matches("[0-9]+") && size[1].matches("[0-9]+")) {
+            source = syntheticImage(Integer.parseInt(size[0]), Integer.parseInt(size[1]));
+        } else {
+            source = ImageIO.read(new File(input));
+            if (source == null) {
+                throw new IOException("Can't read " + new File(input).getAbsolutePath());
+            }
+        }
+        image = new Image(source);
+        megapixels = (double) image.getWidth() * image.getHeight() / 1e6;
+        planarImage = PlanarImage.fromBufferedImage(image);
+        nonMax = new Image(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        new CannyDetector(1.4f, 25, 70).suppressNonMaxima(planarImage).writeTo(nonMax);
+        binaryEdges = BinaryImage.threshold(new Hysteresis(25, 70).apply(PlanarImage.fromBufferedImage(nonMax)), 127);
+        channelKernel = randomKernel(31);
+        workspace = new Workspace();
+        edges = new Image(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        planarEdges = new PlanarImage(image.getWidth(), image.getHeight(), 1);
+        detector = new CannyDetector(1.4f, 25, 70);
+        graph = new ImageGraph();
+        graphCanny = graph.canny(graph.source(planarImage), 1.4f, 25, 70);
+    }
+
+    /**
+     * Counts the megapixels each benchmark has processed. JMH reports an operations counter as a rate, which makes it
+     * the throughput in MP/s.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Pixels {
+        public double megapixels;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            megapixels = 0;
+        }
+    }
+
+    /**
+     * The kernels and boundary policies the convolution benchmarks run over, kept apart from the input so only those
+     * benchmarks multiply by them.
+     */
+    @State(Scope.Benchmark)
+    public static class Convolution {
+        @Param({"3x3", "5x5", "15x15", "31x31"})
+        public String kernel;
+
+        @Param({"ZeroPadding", "BoundaryReplication", "BoundaryReflection", "PeriodicRepetition", "None"})
+        public BoundaryPolicies policy;
+
+        private float[][] filter;
+
+        @Setup
+        public void setUp() {
+            if (kernel.equals("3x3")) {
+                filter = new float[][]{{1, 2, 1}, {2, 4, 2}, {1, 2, 1}};
+            } else if (kernel.equals("5x5")) {
+                filter = Image.generateGaussianKernel(1.4f);
+            } else {
+                filter = randomKernel(Integer.parseInt(kernel.split("x")[0]));
+            }
+        }
+    }
+
+    @Benchmark
+    public Image copyConstructor(Pixels pixels) {
+        pixels.megapixels += megapixels;
+        return new Image((BufferedImage) image);
+    }
+
+    @Benchmark
+    public Image wrap(Pixels pixels) {
+        pixels.megapixels += megapixels;
+        return Image.wrap(source);
+    }
+
+    @Benchmark
+    public Image convertToGrayScale(Pixels pixels) {
+        pixels.megapixels += megapixels;
+        return Image.convertToGrayScale(image);
+    }
+
+    @Benchmark
+    public Image convolveImage(Convolution convolution, Pixels pixels) {
+        pixels.megapixels += megapixels;
+        return Image.convolveImage(image, convolution.filter, convolution.policy);
+    }
+
+    @Benchmark
+    public PlanarImage fftConvolveImage(Convolution convolution, Pixels pixels) {
+        pixels.megapixels += megapixels;
+        return FFTConvolver.convolveImage(planarImage, convolution.filter, convolution.policy);
+    }
+
+    @Benchmark
+    public Image smoothGaussianChannels(Pixels pixels) {
+        pixels.megapixels += megapixels;
+        return Image.smoothGaussianChannels(image, 1.4f, BoundaryPolicies.BoundaryReplication);
+    }
+
+    @Benchmark
+    public Image convolveChannels31x31(Pixels pixels) {
+        pixels.megapixels += megapixels;
+        return Image.convolveChannels(image, channelKernel, BoundaryPolicies.BoundaryReplication);
+    }
+
+    @Benchmark
+    public Image boxFilter31x31(Pixels pixels) {
+        pixels.megapixels += megapixels;
+        return Image.boxFilter(image, 15, 15, BoundaryPolicies.BoundaryReplication);
+    }
+
+    @Benchmark
+    public Image localStandardDeviation31x31(Pixels pixels) {
+        pixels.megapixels += megapixels;
+        return Image.localStandardDeviation(image, 15, 15, BoundaryPolicies.BoundaryReplication);
+    }
+
+    @Benchmark
+    public Image detectEdgesSobel(Pixels pixels) {
+        pixels.megapixels += megapixels;
+        return Image.detectEdgesSobel(image);
+    }
+
+    @Benchmark
+    public Image detectEdgesCanny(Pixels pixels) {
+        pixels.megapixels += megapixels;
+        return Image.detectEdgesCanny(image, 1.4f, 25, 70);
+    }
+
+    @Benchmark
+    public Image detectEdgesCannyWorkspace(Pixels pixels) {
+        pixels.megapixels += megapixels;
+        Image.detectEdgesCanny(image, 1.4f, 25, 70, edges, workspace);
+        return edges;
+    }
+
+    @Benchmark
+    public Image detectEdgesCannyFused(Pixels pixels) {
+        pixels.megapixels += megapixels;
+        return Image.detectEdgesCannyFused(image, 1.4f, 25, 70);
+    }
+
+    @Benchmark
+    public PlanarImage detectEdgesCannyFusedWorkspace(Pixels pixels) {
+        pixels.megapixels += megapixels;
+        detector.detect(planarImage, planarEdges, workspace);
+        return planarEdges;
+    }
+
+    @Benchmark
+    public PlanarImage imageGraphCanny(Pixels pixels) {
+        pixels.megapixels += megapixels;
+        return graph.evaluate(graphCanny);
+    }
+
+    @Benchmark
+    public Image close5x5(Pixels pixels) {
+        pixels.megapixels += megapixels;
+        return Image.close(nonMax, 5, 5);
+    }
+
+    @Benchmark
+    public BinaryImage close5x5Binary(Pixels pixels) {
+        pixels.megapixels += megapixels;
+        return Morphology.close(binaryEdges, 5, 5);
+    }
+
+    @Benchmark
+    public Image applyHysteresis(Pixels pixels) {
+        pixels.megapixels += megapixels;
+        return Image.applyHysteresis(nonMax, 25, 70);
+    }
+
+    /**
+     * Smooth gradients with some noise and a few hard edges on top, so the edge detectors have something to find.
+     */
+    static BufferedImage syntheticImage(int width, int height) {
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(width * 31L + height);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int base = (x * 255 / width + y * 255 / height) / 2;
+                if (((x / 64) + (y / 64)) % 2 == 0) {
+                    base = 255 - base;
+                }
+                int r = clamp(base + random.nextInt(21) - 10);
+                int g = clamp(base + random.nextInt(21) - 10);
+                int b = clamp(base + random.nextInt(21) - 10);
+                row[x] = r << 16 | g << 8 | b;
+            }
+            img.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return img;
+    }
+
+    /**
+     * A kernel with no structure to it, so it can't take the separable shortcut.
+     */
+    private static float[][] randomKernel(int size) {
+        Random random = new Random(size);
+        float[][] kernel = new float[size][size];
+        for (int x = 0; x < size; x++) {
+            for (int y = 0; y < size; y++) {
+                kernel[x][y] = random.nextFloat();
+            }
+        }
+        return kernel;
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+}
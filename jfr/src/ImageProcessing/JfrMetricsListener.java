@@ -0,0 +1,127 @@
+package ImageProcessing;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * This software falls under the MIT license, as follows:
+ * Copyright (C) 2012
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * <p/>
+ * Turns the measurements from {@link Metrics} into JDK Flight Recorder events, so a production run can be profiled
+ * by starting a recording rather than attaching a profiler:
+ * <pre>
+ * Metrics.addListener(new JfrMetricsListener());
+ * java -XX:StartFlightRecording=filename=run.jfr ...
+ * </pre>
+ * Events are only filled in when a recording has them enabled, which they are by default. jdk.jfr needs JDK 11 or
+ * newer, so this lives in its own module on top of the main one, which still builds for JDK 7.
+ */
+public class JfrMetricsListener implements MetricsListener {
+    @Override
+    public void stageCompleted(String operator, String stage, long nanos, long pixels, long allocatedBytes) {
+        StageEvent event = new StageEvent();
+        if (event.shouldCommit()) {
+            event.operator = operator;
+            event.stage = stage;
+            event.time = nanos;
+            event.pixels = pixels;
+            event.allocated = allocatedBytes;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void hysteresisCompleted(String operator, int strongPixels, int linkedPixels) {
+        HysteresisEvent event = new HysteresisEvent();
+        if (event.shouldCommit()) {
+            event.operator = operator;
+            event.strongPixels = strongPixels;
+            event.linkedPixels = linkedPixels;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void operatorCompleted(String operator, long nanos, long pixels, long allocatedBytes) {
+        OperatorEvent event = new OperatorEvent();
+        if (event.shouldCommit()) {
+            event.operator = operator;
+            event.time = nanos;
+            event.pixels = pixels;
+            event.allocated = allocatedBytes;
+            event.commit();
+        }
+    }
+
+    // Events are raised after the work is done, so how long it took is a field rather than the event's own duration
+
+    @Name("ImageProcessing.Stage")
+    @Label("Image Operator Stage")
+    @Category("Image Processing")
+    @StackTrace(false)
+    static class StageEvent extends Event {
+        @Label("Operator")
+        String operator;
+        @Label("Stage")
+        String stage;
+        @Label("Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long time;
+        @Label("Pixels")
+        long pixels;
+        @Label("Allocated")
+        @Description("Bytes allocated by the calling thread, -1 if unknown")
+        @DataAmount
+        long allocated;
+    }
+
+    @Name("ImageProcessing.Operator")
+    @Label("Image Operator")
+    @Category("Image Processing")
+    @StackTrace(false)
+    static class OperatorEvent extends Event {
+        @Label("Operator")
+        String operator;
+        @Label("Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long time;
+        @Label("Pixels")
+        long pixels;
+        @Label("Allocated")
+        @Description("Bytes allocated by the calling thread, -1 if unknown")
+        @DataAmount
+        long allocated;
+    }
+
+    @Name("ImageProcessing.Hysteresis")
+    @Label("Hysteresis")
+    @Category("Image Processing")
+    @StackTrace(false)
+    static class HysteresisEvent extends Event {
+        @Label("Operator")
+        String operator;
+        @Label("Strong Pixels")
+        int strongPixels;
+        @Label("Linked Pixels")
+        int linkedPixels;
+    }
+}
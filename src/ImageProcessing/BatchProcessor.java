@@ -0,0 +1,465 @@
+package ImageProcessing;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This software falls under the MIT license, as follows:
+ * Copyright (C) 2012
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * <p/>
+ * Headless batch mode. Images are decoded, processed and encoded by three separate pools of workers joined by
+ * bounded queues, so disk and CPU work overlap while only a handful of images are in memory at once.
+ * <p/>
+ * Usage: BatchProcessor -input dir|glob -output dir [-ops gray,sobel,canny:sigma:low:high,...]
+ *                       [-format png] [-decoders n] [-workers n] [-encoders n] [-queue n]
+ * <p/>
+ * Operations run left to right. gray converts to grayscale, smooth:sigma is a Gaussian blur, sobel and
+ * canny:sigma:low:high are the edge detectors from Image, and fastcanny:sigma:low:high is the {@link CannyDetector}.
+ * <p/>
+ * Each result is named after its source with the output format's extension added, so photo.jpg is written as
+ * photo.jpg.png. Keeping the source's extension means photo.jpg and photo.png can't overwrite each other's results.
+ */
+public class BatchProcessor {
+    private static final Job POISON = new Job(null, null);
+
+    private final List<ImageOperation> operations;
+    private final File outputDirectory;
+    private final String format;
+    private final int decoders;
+    private final int workers;
+    private final int encoders;
+    private final BlockingQueue<Job> decoded;
+    private final BlockingQueue<Job> processed;
+
+    private final AtomicInteger completed = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicLong pixels = new AtomicLong();
+    private final AtomicLong decodeNanos = new AtomicLong();
+    private final AtomicLong processNanos = new AtomicLong();
+    private final AtomicLong encodeNanos = new AtomicLong();
+
+    public BatchProcessor(List<ImageOperation> operations, File outputDirectory, String format, int decoders,
+                          int workers, int encoders, int queueSize) {
+        this.operations = operations;
+        this.outputDirectory = outputDirectory;
+        this.format = format;
+        this.decoders = decoders;
+        this.workers = workers;
+        this.encoders = encoders;
+        this.decoded = new ArrayBlockingQueue<Job>(queueSize);
+        this.processed = new ArrayBlockingQueue<Job>(queueSize);
+    }
+
+    public static void main(String[] args) throws Exception {
+        String input = null;
+        String output = null;
+        String ops = "fastcanny:1.4:25:70";
+        String format = "png";
+        int cores = Runtime.getRuntime().availableProcessors();
+        int decoders = Math.max(1, cores / 4);
+        int workers = cores;
+        int encoders = Math.max(1, cores / 4);
+        int queueSize = 2 * cores;
+        for (int i = 0; i < args.length; i++) {
+            if (i + 1 >= args.length) {
+                usage("Missing a value for " + args[i]);
+            }
+            if (args[i].equals("-input")) {
+                input = args[++i];
+            } else if (args[i].equals("-output")) {
+                output = args[++i];
+            } else if (args[i].equals("-ops")) {
+                ops = args[++i];
+            } else if (args[i].equals("-format")) {
+                format = args[++i];
+            } else if (args[i].equals("-decoders")) {
+                decoders = parseCount(args[i], args[++i]);
+            } else if (args[i].equals("-workers")) {
+                workers = parseCount(args[i], args[++i]);
+            } else if (args[i].equals("-encoders")) {
+                encoders = parseCount(args[i], args[++i]);
+            } else if (args[i].equals("-queue")) {
+                queueSize = parseCount(args[i], args[++i]);
+            } else {
+                usage("Unknown argument " + args[i]);
+            }
+        }
+        if (input == null || output == null) {
+            usage("Both -input and -output are required");
+        }
+        if (!ImageIO.getImageWritersByFormatName(format).hasNext()) {
+            usage("No image writer for format " + format);
+        }
+        File outputDirectory = new File(output);
+        if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+            usage("Couldn't create output directory " + outputDirectory);
+        }
+        List<ImageOperation> operations = null;
+        try {
+            operations = parseOperations(ops);
+        } catch (IllegalArgumentException e) {
+            // Also catches NumberFormatException, for parameters that aren't numbers
+            usage("Bad -ops " + ops + ": " + e.getMessage());
+        }
+        List<File> files = listInputs(input);
+        BatchProcessor processor = new BatchProcessor(operations, outputDirectory, format, decoders, workers, encoders,
+                queueSize);
+        processor.process(files);
+        System.exit(processor.failed.get() == 0 ? 0 : 1);
+    }
+
+    /**
+     * Thread counts and the queue size have to be at least 1, or a stage would have nobody to run it or nowhere to put
+     * its results.
+     */
+    private static int parseCount(String flag, String value) {
+        int count;
+        try {
+            count = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            count = 0;
+        }
+        if (count < 1) {
+            usage(flag + " needs a positive number, got " + value);
+        }
+        return count;
+    }
+
+    private static void usage(String message) {
+        System.err.println(message);
+        System.err.println("Usage: BatchProcessor -input dir|glob -output dir [-ops gray,sobel,canny:sigma:low:high,...]");
+        System.err.println("                      [-format png] [-decoders n] [-workers n] [-encoders n] [-queue n]");
+        System.exit(2);
+    }
+
+    /**
+     * Lists a directory's files, or the files matching a glob such as photos/*.jpg.
+     */
+    static List<File> listInputs(String input) throws IOException {
+        // Stay on File until the glob is split off, Paths won't accept wildcards on every platform
+        File path = new File(input);
+        Path directory = path.toPath();
+        String glob = "*";
+        if (!path.isDirectory()) {
+            directory = path.getParentFile() == null ? Paths.get(".") : path.getParentFile().toPath();
+            glob = path.getName();
+        }
+        List<File> files = new ArrayList<File>();
+        DirectoryStream<Path> stream = Files.newDirectoryStream(directory, glob);
+        try {
+            for (Path file : stream) {
+                if (Files.isRegularFile(file)) {
+                    files.add(file.toFile());
+                }
+            }
+        } finally {
+            stream.close();
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    /**
+     * Parses a comma separated operation chain, with each operation's parameters separated by colons.
+     *
+     * @throws IllegalArgumentException If an operation is unknown, has too many parameters, or has one that isn't a
+     *                                  number or is out of range
+     */
+    static List<ImageOperation> parseOperations(String chain) {
+        List<ImageOperation> operations = new ArrayList<ImageOperation>();
+        for (String spec : chain.split(",")) {
+            final String[] parts = spec.trim().split(":");
+            String name = parts[0].toLowerCase();
+            int maxParts = name.equals("canny") || name.equals("fastcanny") ? 4 : name.equals("smooth") ? 2 : 1;
+            if (parts.length > maxParts) {
+                throw new IllegalArgumentException("Too many parameters for " + spec);
+            }
+            if (name.equals("gray")) {
+                operations.add(new ImageOperation() {
+                    public PlanarImage apply(PlanarImage img) {
+                        return PlanarImage.convertToGrayScale(img);
+                    }
+                });
+            } else if (name.equals("sobel")) {
+                operations.add(new ImageOperation() {
+                    public PlanarImage apply(PlanarImage img) {
+                        return Image.detectEdgesSobel(img);
+                    }
+                });
+            } else if (name.equals("smooth")) {
+                final float sigma = parseSigma(parts);
+                operations.add(new ImageOperation() {
+                    public PlanarImage apply(PlanarImage img) {
+                        return PlanarImage.smoothGaussian(img, sigma, BoundaryPolicies.BoundaryReplication);
+                    }
+                });
+            } else if (name.equals("canny") || name.equals("fastcanny")) {
+                final float sigma = parseSigma(parts);
+                final int low = parts.length > 2 ? Integer.parseInt(parts[2]) : 25;
+                final int high = parts.length > 3 ? Integer.parseInt(parts[3]) : 70;
+                if (low < 0 || high < low) {
+                    throw new IllegalArgumentException("Thresholds need 0 <= low <= high, got " + low + " and " + high);
+                }
+                if (name.equals("canny")) {
+                    operations.add(new ImageOperation() {
+                        public PlanarImage apply(PlanarImage img) {
+                            PlanarImage edges = new PlanarImage(img.getWidth(), img.getHeight(), 1);
+                            Image.detectEdgesCanny(img, sigma, low, high, edges, Workspace.forCurrentThread());
+                            return edges;
+                        }
+                    });
+                } else {
+                    // Detectors hold per-frame buffers, so every worker thread gets its own
+                    final ThreadLocal<CannyDetector> detectors = new ThreadLocal<CannyDetector>() {
+                        @Override
+                        protected CannyDetector initialValue() {
+                            return new CannyDetector(sigma, low, high);
+                        }
+                    };
+                    operations.add(new ImageOperation() {
+                        public PlanarImage apply(PlanarImage img) {
+                            PlanarImage edges = new PlanarImage(img.getWidth(), img.getHeight(), 1);
+                            detectors.get().detect(img, edges, Workspace.forCurrentThread());
+                            return edges;
+                        }
+                    });
+                }
+            } else {
+                throw new IllegalArgumentException("Unknown operation " + spec);
+            }
+        }
+        return operations;
+    }
+
+    /**
+     * The sigma in an operation's first parameter, or 1.4 without one. It's checked here rather than left to fail on
+     * every image.
+     */
+    private static float parseSigma(String[] parts) {
+        float sigma = parts.length > 1 ? Float.parseFloat(parts[1]) : 1.4f;
+        if (!(sigma > 0) || Float.isInfinite(sigma)) {
+            throw new IllegalArgumentException("Sigma must be positive, was " + parts[1]);
+        }
+        return sigma;
+    }
+
+    /**
+     * Runs every file through the pipeline and prints a summary once they're all written.
+     */
+    public void process(List<File> files) throws InterruptedException {
+        long start = System.nanoTime();
+        final BlockingQueue<File> pending = new ArrayBlockingQueue<File>(Math.max(1, files.size()), false, files);
+        ExecutorService decodePool = Executors.newFixedThreadPool(decoders);
+        ExecutorService workerPool = Executors.newFixedThreadPool(workers);
+        ExecutorService encodePool = Executors.newFixedThreadPool(encoders);
+        final AtomicInteger decodersLeft = new AtomicInteger(decoders);
+        final AtomicInteger workersLeft = new AtomicInteger(workers);
+
+        for (int i = 0; i < decoders; i++) {
+            decodePool.execute(new Runnable() {
+                public void run() {
+                    try {
+                        File file;
+                        while ((file = pending.poll()) != null) {
+                            decode(file);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        // However this thread stops, the last decoder out tells the workers nothing more is coming
+                        if (decodersLeft.decrementAndGet() == 0) {
+                            handOff(decoded, workers);
+                        }
+                    }
+                }
+            });
+        }
+        for (int i = 0; i < workers; i++) {
+            workerPool.execute(new Runnable() {
+                public void run() {
+                    try {
+                        Job job;
+                        while ((job = decoded.take()) != POISON) {
+                            process(job);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        if (workersLeft.decrementAndGet() == 0) {
+                            handOff(processed, encoders);
+                        }
+                    }
+                }
+            });
+        }
+        for (int i = 0; i < encoders; i++) {
+            encodePool.execute(new Runnable() {
+                public void run() {
+                    try {
+                        Job job;
+                        while ((job = processed.take()) != POISON) {
+                            encode(job);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+
+        decodePool.shutdown();
+        workerPool.shutdown();
+        encodePool.shutdown();
+        encodePool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        printSummary(System.nanoTime() - start);
+    }
+
+    /**
+     * Puts a poison pill on the queue for each of the next stage's threads. It's called from finally blocks, so it
+     * keeps going through an interrupt rather than leave the next stage waiting forever, and interrupts again after.
+     */
+    private static void handOff(BlockingQueue<Job> queue, int readers) {
+        boolean interrupted = false;
+        for (int i = 0; i < readers; i++) {
+            while (true) {
+                try {
+                    queue.put(POISON);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Each stage counts an Error, such as running out of memory on a huge image, against the image it was working on.
+    // If it killed the thread instead, a stage could be left with nobody reading its queue and the pipeline would stall.
+    private void decode(File file) throws InterruptedException {
+        long start = System.nanoTime();
+        PlanarImage img;
+        try {
+            BufferedImage read = ImageIO.read(file);
+            if (read == null) {
+                throw new IOException("No image reader understands this file");
+            }
+            img = PlanarImage.fromBufferedImage(read);
+        } catch (IOException e) {
+            fail(file, e);
+            return;
+        } catch (RuntimeException e) {
+            fail(file, e);
+            return;
+        } catch (Error e) {
+            fail(file, e);
+            return;
+        } finally {
+            decodeNanos.addAndGet(System.nanoTime() - start);
+        }
+        decoded.put(new Job(file, img));
+    }
+
+    private void process(Job job) throws InterruptedException {
+        long start = System.nanoTime();
+        PlanarImage img = job.image;
+        try {
+            for (ImageOperation operation : operations) {
+                img = operation.apply(img);
+            }
+        } catch (RuntimeException e) {
+            fail(job.file, e);
+            return;
+        } catch (Error e) {
+            fail(job.file, e);
+            return;
+        } finally {
+            processNanos.addAndGet(System.nanoTime() - start);
+        }
+        processed.put(new Job(job.file, img));
+    }
+
+    private void encode(Job job) {
+        long start = System.nanoTime();
+        File output = new File(outputDirectory, job.file.getName() + "." + format);
+        try {
+            if (!ImageIO.write(job.image.toImage(BufferedImage.TYPE_INT_RGB), format, output)) {
+                throw new IOException("No image writer for format " + format);
+            }
+            completed.incrementAndGet();
+            pixels.addAndGet((long) job.image.getWidth() * job.image.getHeight());
+        } catch (IOException e) {
+            fail(job.file, e);
+        } catch (RuntimeException e) {
+            fail(job.file, e);
+        } catch (Error e) {
+            fail(job.file, e);
+        } finally {
+            encodeNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private void fail(File file, Throwable e) {
+        failed.incrementAndGet();
+        System.err.println("Failed to process " + file + ": " + e);
+    }
+
+    private void printSummary(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        double megapixels = pixels.get() / 1e6;
+        System.out.println(String.format("Processed %d images (%d failed) in %.2f s", completed.get(), failed.get(), seconds));
+        System.out.println(String.format("Throughput: %.2f images/s, %.2f MP/s", completed.get() / seconds,
+                megapixels / seconds));
+        System.out.println(String.format("Busy time: decode %.2f s (%d threads), process %.2f s (%d threads), " +
+                "encode %.2f s (%d threads)", decodeNanos.get() / 1e9, decoders, processNanos.get() / 1e9, workers,
+                encodeNanos.get() / 1e9, encoders));
+    }
+
+    public int getCompletedCount() {
+        return completed.get();
+    }
+
+    public int getFailedCount() {
+        return failed.get();
+    }
+
+    private static class Job {
+        final File file;
+        final PlanarImage image;
+
+        Job(File file, PlanarImage image) {
+            this.file = file;
+            this.image = image;
+        }
+    }
+}
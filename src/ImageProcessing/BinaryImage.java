@@ -0,0 +1,124 @@
+package ImageProcessing;
+
+/**
+ * This software falls under the MIT license, as follows:
+ * Copyright (C) 2012
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * <p/>
+ * A black and white image packed 64 pixels to a long, such as a thresholded edge map. Each row starts on a fresh
+ * word, with pixel x of row y held in bit (x % 64) of bits[y * words + x / 64]. Bits past the width of a row are
+ * always clear.
+ */
+public class BinaryImage {
+    private final int width;
+    private final int height;
+    private final int words;
+    private final long[] bits;
+
+    public BinaryImage(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.words = wordsFor(width);
+        this.bits = new long[words * height];
+    }
+
+    /**
+     * Sets every pixel whose intensity is above the threshold. Edge maps, which only hold 0 and 255, convert with any
+     * threshold in between.
+     */
+    public static BinaryImage threshold(PlanarImage img, int threshold) {
+        BinaryImage binary = new BinaryImage(img.getWidth(), img.getHeight());
+        byte[] plane = img.getIntensityPlane();
+        for (int y = 0; y < img.getHeight(); y++) {
+            int in = y * img.getStride();
+            int row = y * binary.words;
+            for (int x = 0; x < img.getWidth(); x++) {
+                if ((plane[in + x] & 0xff) > threshold) {
+                    binary.bits[row + (x >>> 6)] |= 1L << x;
+                }
+            }
+        }
+        return binary;
+    }
+
+    /**
+     * 255 where a pixel is set and 0 where it isn't.
+     */
+    public PlanarImage toPlanarImage() {
+        PlanarImage img = new PlanarImage(width, height, 1);
+        byte[] plane = img.getPlane(0);
+        for (int y = 0; y < height; y++) {
+            int row = y * words;
+            int out = y * img.getStride();
+            for (int x = 0; x < width; x++) {
+                plane[out + x] = (byte) -(int) (bits[row + (x >>> 6)] >>> x & 1);
+            }
+        }
+        return img;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * The number of longs in each row.
+     */
+    public int getWordsPerRow() {
+        return words;
+    }
+
+    /**
+     * The packed pixels themselves, row after row.
+     */
+    public long[] getBits() {
+        return bits;
+    }
+
+    public boolean get(int x, int y) {
+        return (bits[y * words + (x >>> 6)] >>> x & 1) != 0;
+    }
+
+    public void set(int x, int y, boolean value) {
+        if (value) {
+            bits[y * words + (x >>> 6)] |= 1L << x;
+        } else {
+            bits[y * words + (x >>> 6)] &= ~(1L << x);
+        }
+    }
+
+    public long countSetPixels() {
+        long count = 0;
+        for (long word : bits) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    static int wordsFor(int width) {
+        return (width + 63) >>> 6;
+    }
+
+    /**
+     * The bits of the last word in a row that hold pixels.
+     */
+    static long lastWordMask(int width) {
+        return (width & 63) == 0 ? -1L : (1L << width) - 1;
+    }
+}
@@ -0,0 +1,313 @@
+package ImageProcessing;
+
+import java.util.Arrays;
+
+/**
+ * This software falls under the MIT license, as follows:
+ * Copyright (C) 2012
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * <p/>
+ * A fused Canny edge detector. Rather than building a full image for each stage, rows are pushed through
+ * grayscale conversion, Gaussian smoothing, signed Sobel gradients and non-maximal suppression while only a few
+ * rows of each stage are kept around. Directions are quantised by comparing |gY| against |gX| * tan(22.5) and
+ * |gX| * tan(67.5), so there is no trig in the loop. Smoothing and gradients replicate the border pixels.
+ * <p/>
+ * Gradient magnitudes are on the same 0-255 scale as {@link Image#detectEdgesCanny}, so the same thresholds work.
+ * A detector isn't thread safe, but it can be reused for any number of frames.
+ */
+public class CannyDetector {
+    static final byte DIRECTION_0 = 0;
+    static final byte DIRECTION_45 = 1;
+    static final byte DIRECTION_90 = 2;
+    static final byte DIRECTION_135 = 3;
+
+    private static final float TAN_22_5 = 0.41421356f;
+    private static final float TAN_67_5 = 2.41421356f;
+
+    private final float sigma;
+    private final int lowThreshold;
+    private final int highThreshold;
+    private final float[] kernel;
+    private final int radius;
+    private final Hysteresis hysteresis;
+    private final ImageSink imageSink = new ImageSink();
+
+    private int width;
+    private int height;
+    private byte[] grayRow;
+    private float[][] horizontalRows;
+    private float[][] smoothedRows;
+    private float[][] magnitudeRows;
+    private byte[][] directionRows;
+    private byte[] nonMaxRow;
+
+    private int received;
+    private int nextSmoothed;
+    private int nextGradient;
+    private int nextNonMax;
+
+    public CannyDetector(float sigma, int lowThreshold, int highThreshold) {
+        this.sigma = sigma;
+        this.lowThreshold = lowThreshold;
+        this.highThreshold = highThreshold;
+        this.kernel = PlanarImage.generateGaussianKernel1D(sigma);
+        this.radius = kernel.length / 2;
+        this.hysteresis = new Hysteresis(lowThreshold, highThreshold);
+    }
+
+    public float getSigma() {
+        return sigma;
+    }
+
+    public int getLowThreshold() {
+        return lowThreshold;
+    }
+
+    public int getHighThreshold() {
+        return highThreshold;
+    }
+
+    /**
+     * Runs the whole detector, hysteresis included, over the image.
+     */
+    public PlanarImage detect(PlanarImage sourceImage) {
+        return hysteresis.apply(suppressNonMaxima(sourceImage));
+    }
+
+    /**
+     * Runs the whole detector into the first plane of dest, borrowing the suppressed image from the workspace. Along
+     * with the row buffers the detector keeps between frames, this allocates nothing once the first frame is done.
+     */
+    public void detect(PlanarImage sourceImage, PlanarImage dest, Workspace workspace) {
+        PlanarImage nonMax = workspace.acquire(sourceImage.getWidth(), sourceImage.getHeight(), 1);
+        suppressNonMaxima(sourceImage, nonMax);
+        hysteresis.apply(nonMax, dest);
+        workspace.release(nonMax);
+    }
+
+    /**
+     * The hysteresis stage, which holds the strong and linked pixel counts for the last frame detected.
+     */
+    public Hysteresis getHysteresis() {
+        return hysteresis;
+    }
+
+    /**
+     * Runs everything up to and including non-maximal suppression, and returns the thinned gradient magnitudes.
+     */
+    public PlanarImage suppressNonMaxima(PlanarImage sourceImage) {
+        PlanarImage nonMax = new PlanarImage(sourceImage.getWidth(), sourceImage.getHeight(), 1);
+        suppressNonMaxima(sourceImage, nonMax);
+        return nonMax;
+    }
+
+    /**
+     * Writes the thinned gradient magnitudes into the first plane of dest, which must be the same size as the source.
+     */
+    public void suppressNonMaxima(PlanarImage sourceImage, PlanarImage dest) {
+        if (dest.getWidth() != sourceImage.getWidth() || dest.getHeight() != sourceImage.getHeight()) {
+            throw new IllegalArgumentException("Expected a " + sourceImage.getWidth() + "x" + sourceImage.getHeight()
+                    + " destination, got " + dest.getWidth() + "x" + dest.getHeight());
+        }
+        begin(sourceImage.getWidth(), sourceImage.getHeight());
+        imageSink.target = dest;
+        for (int y = 0; y < sourceImage.getHeight(); y++) {
+            pushRow(sourceImage, y, imageSink);
+        }
+        imageSink.target = null;
+    }
+
+    /**
+     * Starts a new frame. Rows must then be pushed in order, and suppressed rows come out of the sink a couple of
+     * rows plus the smoothing radius behind. Once the last row is pushed every row will have been emitted.
+     */
+    public void begin(int width, int height) {
+        if (width != this.width || horizontalRows == null) {
+            grayRow = new byte[width];
+            horizontalRows = new float[Math.min(2 * radius + 1, Math.max(height, 1))][width];
+            smoothedRows = new float[3][width];
+            magnitudeRows = new float[3][width];
+            directionRows = new byte[3][width];
+            nonMaxRow = new byte[width];
+        } else if (horizontalRows.length < Math.min(2 * radius + 1, height)) {
+            horizontalRows = new float[Math.min(2 * radius + 1, height)][width];
+        }
+        this.width = width;
+        this.height = height;
+        received = 0;
+        nextSmoothed = 0;
+        nextGradient = 0;
+        nextNonMax = 0;
+    }
+
+    /**
+     * Pushes row y of the source image, converting colour images to gray the same way
+     * {@link PlanarImage#convertToGrayScale} does.
+     */
+    public void pushRow(PlanarImage sourceImage, int y, RowSink sink) {
+        int in = y * sourceImage.getStride();
+        if (sourceImage.getChannels() < 3) {
+            pushGrayRow(sourceImage.getPlane(0), in, sink);
+            return;
+        }
+        byte[] r = sourceImage.getPlane(PlanarImage.RED);
+        byte[] g = sourceImage.getPlane(PlanarImage.GREEN);
+        byte[] b = sourceImage.getPlane(PlanarImage.BLUE);
+        for (int x = 0; x < width; x++) {
+            grayRow[x] = (byte) (((r[in + x] & 0xff) + (g[in + x] & 0xff) + (b[in + x] & 0xff)) / 3);
+        }
+        pushGrayRow(grayRow, 0, sink);
+    }
+
+    public void pushGrayRow(byte[] gray, int offset, RowSink sink) {
+        if (received >= height) {
+            throw new IllegalStateException("All " + height + " rows have already been pushed");
+        }
+        smoothHorizontally(gray, offset, horizontalRows[received % horizontalRows.length]);
+        received++;
+        while (nextSmoothed < height && Math.min(nextSmoothed + radius, height - 1) < received) {
+            smoothVertically(nextSmoothed);
+            nextSmoothed++;
+            while (nextGradient < height && Math.min(nextGradient + 1, height - 1) < nextSmoothed) {
+                calculateGradient(nextGradient);
+                nextGradient++;
+                while (nextNonMax < height && Math.min(nextNonMax + 1, height - 1) < nextGradient) {
+                    suppressRow(nextNonMax);
+                    sink.acceptRow(nextNonMax, nonMaxRow);
+                    nextNonMax++;
+                }
+            }
+        }
+    }
+
+    private void smoothHorizontally(byte[] gray, int offset, float[] dest) {
+        int interiorEnd = width - radius;
+        for (int x = 0; x < Math.min(radius, width); x++) {
+            dest[x] = smoothClamped(gray, offset, x);
+        }
+        for (int x = radius; x < interiorEnd; x++) {
+            float sum = 0;
+            int start = offset + x - radius;
+            for (int i = 0; i < kernel.length; i++) {
+                sum += (gray[start + i] & 0xff) * kernel[i];
+            }
+            dest[x] = sum;
+        }
+        for (int x = Math.max(radius, interiorEnd); x < width; x++) {
+            dest[x] = smoothClamped(gray, offset, x);
+        }
+    }
+
+    private float smoothClamped(byte[] gray, int offset, int x) {
+        float sum = 0;
+        for (int i = 0; i < kernel.length; i++) {
+            int iX = clamp(x + i - radius, width);
+            sum += (gray[offset + iX] & 0xff) * kernel[i];
+        }
+        return sum;
+    }
+
+    private void smoothVertically(int y) {
+        float[] dest = smoothedRows[y % 3];
+        Arrays.fill(dest, 0);
+        for (int i = 0; i < kernel.length; i++) {
+            float[] row = horizontalRows[clamp(y + i - radius, height) % horizontalRows.length];
+            float weight = kernel[i];
+            for (int x = 0; x < width; x++) {
+                dest[x] += row[x] * weight;
+            }
+        }
+    }
+
+    private void calculateGradient(int y) {
+        float[] above = smoothedRows[clamp(y - 1, height) % 3];
+        float[] current = smoothedRows[y % 3];
+        float[] below = smoothedRows[clamp(y + 1, height) % 3];
+        float[] magnitude = magnitudeRows[y % 3];
+        byte[] direction = directionRows[y % 3];
+        for (int x = 0; x < width; x++) {
+            int left = x > 0 ? x - 1 : 0;
+            int right = x < width - 1 ? x + 1 : width - 1;
+            float gX = (above[right] + 2 * current[right] + below[right]) - (above[left] + 2 * current[left] + below[left]);
+            float gY = (below[left] + 2 * below[x] + below[right]) - (above[left] + 2 * above[x] + above[right]);
+            magnitude[x] = (float) Math.sqrt(gX * gX + gY * gY);
+            float absX = Math.abs(gX);
+            float absY = Math.abs(gY);
+            if (absY <= absX * TAN_22_5) {
+                direction[x] = DIRECTION_0;
+            } else if (absY >= absX * TAN_67_5) {
+                direction[x] = DIRECTION_90;
+            } else if ((gX > 0) == (gY > 0)) {
+                // Rows grow downwards, so matching signs point down and to the right
+                direction[x] = DIRECTION_45;
+            } else {
+                direction[x] = DIRECTION_135;
+            }
+        }
+    }
+
+    private void suppressRow(int y) {
+        float[] above = magnitudeRows[clamp(y - 1, height) % 3];
+        float[] current = magnitudeRows[y % 3];
+        float[] below = magnitudeRows[clamp(y + 1, height) % 3];
+        byte[] direction = directionRows[y % 3];
+        for (int x = 0; x < width; x++) {
+            int left = x > 0 ? x - 1 : 0;
+            int right = x < width - 1 ? x + 1 : width - 1;
+            float firstNeighbor;
+            float secondNeighbor;
+            switch (direction[x]) {
+                case DIRECTION_0:
+                    firstNeighbor = current[left];
+                    secondNeighbor = current[right];
+                    break;
+                case DIRECTION_90:
+                    firstNeighbor = above[x];
+                    secondNeighbor = below[x];
+                    break;
+                case DIRECTION_45:
+                    firstNeighbor = below[right];
+                    secondNeighbor = above[left];
+                    break;
+                default:
+                    firstNeighbor = above[right];
+                    secondNeighbor = below[left];
+                    break;
+            }
+            float value = current[x];
+            if (value < firstNeighbor || value < secondNeighbor) {
+                nonMaxRow[x] = 0;
+            } else {
+                nonMaxRow[x] = (byte) Math.min(255, Math.round(value));
+            }
+        }
+    }
+
+    private static int clamp(int i, int size) {
+        return i < 0 ? 0 : (i >= size ? size - 1 : i);
+    }
+
+    /**
+     * Copies suppressed rows into an image. Kept on the detector so whole frames don't need a new sink each time.
+     */
+    private static class ImageSink implements RowSink {
+        PlanarImage target;
+
+        @Override
+        public void acceptRow(int y, byte[] row) {
+            System.arraycopy(row, 0, target.getPlane(0), y * target.getStride(), row.length);
+        }
+    }
+}
@@ -0,0 +1,351 @@
+package ImageProcessing;
+
+import java.util.Arrays;
+
+/**
+ * This software falls under the MIT license, as follows:
+ * Copyright (C) 2012
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * <p/>
+ * Convolves through the frequency domain, which costs O(log tile) per pixel however big the kernel is, against the
+ * O(k^2) of the direct loops in {@link PlanarImage}. The image is cut into square output tiles. Each tile reads its
+ * input plus the kernel's halo from the source, with the boundary policy filling in anything past the edge, is
+ * transformed, multiplied by the kernel's spectrum and transformed back, and keeps only the pixels the circular
+ * wrap-around didn't reach (overlap-save). Tiles are real, so they go through the transforms two at a time, one in
+ * the real part and one in the imaginary part.
+ * <p/>
+ * Sums are kept in doubles rather than the floats the direct loops add up in, so results can differ from
+ * {@link PlanarImage#convolveImage} by one gray level where a sum lands next to a rounding boundary. They never differ
+ * by more than that.
+ * <p/>
+ * {@link PlanarImage#convolveImage} picks between the two on its own with {@link #choose}, so this only needs to be
+ * used directly to force the FFT.
+ */
+public class FFTConvolver {
+    // Costs relative to one multiply-add of the direct 2D loop, fitted to timings of both paths over 1024x1024
+    // images with kernels from 5x5 to 63x63 and every tile size
+    private static final double SEPARABLE_TAP_COST = 0.75;
+    private static final double SEPARABLE_PIXEL_COST = 3;
+    private static final double BUTTERFLY_COST = 3;
+    private static final double TILE_PIXEL_COST = 10;
+    private static final int MIN_TILE = 32;
+    private static final int MAX_TILE = 512;
+
+    private final float[][] filter;
+    private final int radius;
+    private final int size;
+    private final int block;
+    private final double[] cos;
+    private final double[] sin;
+    private final int[] reversed;
+    private final double[] kernelRe;
+    private final double[] kernelIm;
+
+    /**
+     * @param size The tile size to transform, a power of two bigger than the kernel
+     */
+    FFTConvolver(float[][] filter, int size) {
+        this.filter = filter;
+        this.radius = filter.length / 2;
+        this.size = size;
+        this.block = size - filter.length + 1;
+        this.cos = new double[size / 2];
+        this.sin = new double[size / 2];
+        for (int i = 0; i < size / 2; i++) {
+            cos[i] = Math.cos(2 * Math.PI * i / size);
+            sin[i] = Math.sin(2 * Math.PI * i / size);
+        }
+        this.reversed = new int[size];
+        int bits = Integer.numberOfTrailingZeros(size);
+        for (int i = 0; i < size; i++) {
+            reversed[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+        this.kernelRe = new double[size * size];
+        this.kernelIm = new double[size * size];
+        for (int a = 0; a < filter.length; a++) {
+            for (int b = 0; b < filter.length; b++) {
+                // The filter is indexed [x][y], the tiles row by row
+                kernelRe[b * size + a] = filter[a][b];
+            }
+        }
+        transform2D(kernelRe, kernelIm, false);
+    }
+
+    /**
+     * Convolves the image through the FFT whatever the kernel size, with the cheapest tile size for it.
+     */
+    public static PlanarImage convolveImage(PlanarImage sourceImage, float[][] filter, BoundaryPolicies p) {
+        if (!isSquare(filter)) {
+            throw new IllegalArgumentException("Only square kernels with an odd size can be convolved through the FFT");
+        }
+        PlanarImage output = new PlanarImage(sourceImage.getWidth(), sourceImage.getHeight(), 1);
+        int size = cheapestTile(filter.length, sourceImage.getWidth(), sourceImage.getHeight());
+        new FFTConvolver(filter, size).convolveRows(sourceImage, p, sourceImage.intensityChannels(), output, 0,
+                sourceImage.getHeight(), 0);
+        return output;
+    }
+
+    /**
+     * The cost model: returns a convolver for the kernel if the FFT is expected to beat the direct loops over rows
+     * rows of this width, and null otherwise.
+     *
+     * @param separable Whether the direct loops would take the two pass route for this kernel
+     */
+    static FFTConvolver choose(float[][] filter, boolean separable, int width, int rows) {
+        if (!isSquare(filter) || filter.length * 2 > MAX_TILE) {
+            return null;
+        }
+        int k = filter.length;
+        double direct = (double) width * rows
+                * (separable ? 2 * k * SEPARABLE_TAP_COST + SEPARABLE_PIXEL_COST : k * k);
+        int size = cheapestTile(k, width, rows);
+        if (tileCost(size, k, width, rows) >= direct) {
+            return null;
+        }
+        return new FFTConvolver(filter, size);
+    }
+
+    private static boolean isSquare(float[][] filter) {
+        for (float[] column : filter) {
+            if (column.length != filter.length) {
+                return false;
+            }
+        }
+        // Like the direct loops, only odd sizes have a centre
+        return filter.length % 2 == 1;
+    }
+
+    private static int cheapestTile(int k, int width, int rows) {
+        int best = 0;
+        double bestCost = Double.MAX_VALUE;
+        for (int size = MIN_TILE; size <= MAX_TILE; size *= 2) {
+            if (size < 2 * k) {
+                continue;
+            }
+            double cost = tileCost(size, k, width, rows);
+            if (cost < bestCost) {
+                bestCost = cost;
+                best = size;
+            }
+        }
+        return best != 0 ? best : Integer.highestOneBit(2 * k - 1) * 2;
+    }
+
+    /**
+     * The estimated cost of covering the rows with tiles of this size, two tiles to a forward and inverse transform.
+     */
+    private static double tileCost(int size, int k, int width, int rows) {
+        int block = size - k + 1;
+        long tiles = (long) ((width + block - 1) / block) * ((rows + block - 1) / block);
+        double butterflies = 2 * (double) size * size * Integer.numberOfTrailingZeros(size);
+        // Each pair of tiles also costs loading, multiplying, scaling and storing a tile's worth of pixels
+        return (tiles + 1) / 2 * (butterflies * BUTTERFLY_COST + (double) size * size * TILE_PIXEL_COST);
+    }
+
+    /**
+     * The rows of output each tile holds, which is also how far apart tiles are.
+     */
+    int getBlock() {
+        return block;
+    }
+
+    /**
+     * Convolves rows [y0, y1) of each of the given source planes into the matching plane of dest, with plane i of dest
+     * written from plane channels[i] of the source. The tiles of every channel are paired up as one run, so a colour
+     * image with an odd number of tiles per channel still only wastes half a transform.
+     * <p/>
+     * Tiles start on rows whose index plus tileOffset is a multiple of the block, rather than at y0, so any band of
+     * rows is cut into the same tiles as the whole image. Tiles hang over the ends of the band where they need to,
+     * and only the rows inside it are stored.
+     */
+    void convolveRows(PlanarImage sourceImage, BoundaryPolicies p, int[] channels, PlanarImage dest, int y0, int y1,
+                      int tileOffset) {
+        int width = sourceImage.getWidth();
+        float fSum = PlanarImage.getFilterSum(filter);
+        if (Math.abs(fSum) < 0.0001) {
+            fSum = 1;
+        }
+        double[] re = new double[size * size];
+        double[] im = new double[size * size];
+        int[] columns = new int[size];
+        int tilesAcross = (width + block - 1) / block;
+        int first = y0 - (y0 + tileOffset) % block;
+        int tilesDown = (y1 - first + block - 1) / block;
+        int tiles = tilesAcross * tilesDown;
+        int tasks = tiles * channels.length;
+        for (int t = 0; t < tasks; t += 2) {
+            int c0 = t / tiles;
+            int x0 = t % tiles % tilesAcross * block;
+            int ty0 = first + t % tiles / tilesAcross * block;
+            loadTile(sourceImage.getPlane(channels[c0]), sourceImage, p, x0, ty0, re, columns);
+            boolean paired = t + 1 < tasks;
+            int c1 = 0;
+            int x1 = 0;
+            int ty1 = 0;
+            if (paired) {
+                c1 = (t + 1) / tiles;
+                x1 = (t + 1) % tiles % tilesAcross * block;
+                ty1 = first + (t + 1) % tiles / tilesAcross * block;
+                loadTile(sourceImage.getPlane(channels[c1]), sourceImage, p, x1, ty1, im, columns);
+            } else {
+                Arrays.fill(im, 0);
+            }
+            transform2D(re, im, false);
+            // Multiplying by the conjugate correlates rather than convolves, which is what the direct loops do
+            for (int i = 0; i < re.length; i++) {
+                double r = re[i] * kernelRe[i] + im[i] * kernelIm[i];
+                im[i] = im[i] * kernelRe[i] - re[i] * kernelIm[i];
+                re[i] = r;
+            }
+            transform2D(re, im, true);
+            storeTile(re, fSum, dest.getPlane(c0), dest.getStride(), x0, ty0, Math.min(x0 + block, width),
+                    Math.max(ty0, y0), Math.min(ty0 + block, y1));
+            if (paired) {
+                storeTile(im, fSum, dest.getPlane(c1), dest.getStride(), x1, ty1, Math.min(x1 + block, width),
+                        Math.max(ty1, y0), Math.min(ty1 + block, y1));
+            }
+        }
+        if (p == BoundaryPolicies.None) {
+            // The direct loops give up on a kernel row at its first pixel off the left edge, which leaves nothing in
+            // the columns within the radius of it, and pad every other side with zeroes
+            for (int c = 0; c < channels.length; c++) {
+                byte[] out = dest.getPlane(c);
+                for (int y = y0; y < y1; y++) {
+                    Arrays.fill(out, y * dest.getStride(), y * dest.getStride() + Math.min(radius, width), (byte) 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Fills the tile with the plane's pixels from (x0 - radius, y0 - radius) onwards, as the policy sees them.
+     */
+    private void loadTile(byte[] src, PlanarImage sourceImage, BoundaryPolicies p, int x0, int y0, double[] tile,
+                          int[] columns) {
+        int width = sourceImage.getWidth();
+        int height = sourceImage.getHeight();
+        // A tile is exactly a block of output plus the radius on either side
+        for (int x = 0; x < size; x++) {
+            columns[x] = PlanarImage.boundaryIndex(x0 - radius + x, width, p);
+        }
+        for (int y = 0; y < size; y++) {
+            int o = y * size;
+            int iY = PlanarImage.boundaryIndex(y0 - radius + y, height, p);
+            if (iY < 0) {
+                Arrays.fill(tile, o, o + size, 0);
+                continue;
+            }
+            int row = iY * sourceImage.getStride();
+            for (int x = 0; x < size; x++) {
+                int iX = columns[x];
+                tile[o + x] = iX < 0 ? 0 : src[row + iX] & 0xff;
+            }
+        }
+    }
+
+    /**
+     * Stores rows [y0, y1) of the tile whose first output row is ty.
+     */
+    private void storeTile(double[] tile, float fSum, byte[] out, int stride, int x0, int ty, int x1, int y0,
+                           int y1) {
+        for (int y = y0; y < y1; y++) {
+            int in = (y - ty) * size - x0;
+            int o = y * stride;
+            for (int x = x0; x < x1; x++) {
+                out[o + x] = (byte) Math.min(255, Math.abs(Math.round((float) tile[in + x] / fSum)));
+            }
+        }
+    }
+
+    /**
+     * Transforms every column, transposes, and transforms every column again. A forward transform leaves the spectrum
+     * transposed, which is fine as the kernel's spectrum is transposed the same way and an inverse transform undoes
+     * it, so a round trip is the identity. The inverse is scaled.
+     */
+    private void transform2D(double[] re, double[] im, boolean inverse) {
+        transformColumns(re, im, inverse);
+        transpose(re);
+        transpose(im);
+        transformColumns(re, im, inverse);
+        if (inverse) {
+            double scale = 1d / ((double) size * size);
+            for (int i = 0; i < re.length; i++) {
+                re[i] *= scale;
+                im[i] *= scale;
+            }
+        }
+    }
+
+    /**
+     * An iterative radix-2 FFT down every column at once. Each butterfly combines two whole rows with the same
+     * twiddle factor, so the innermost loop runs along contiguous memory.
+     */
+    private void transformColumns(double[] re, double[] im, boolean inverse) {
+        for (int i = 0; i < size; i++) {
+            int j = reversed[i];
+            if (j > i) {
+                swapRows(re, i, j);
+                swapRows(im, i, j);
+            }
+        }
+        double sign = inverse ? 1 : -1;
+        for (int half = 1, step = size / 2; half < size; half *= 2, step /= 2) {
+            for (int start = 0; start < size; start += 2 * half) {
+                for (int k = 0; k < half; k++) {
+                    double wr = cos[k * step];
+                    double wi = sign * sin[k * step];
+                    int a = (start + k) * size;
+                    int b = a + half * size;
+                    for (int x = 0; x < size; x++) {
+                        double tr = re[b + x] * wr - im[b + x] * wi;
+                        double ti = re[b + x] * wi + im[b + x] * wr;
+                        re[b + x] = re[a + x] - tr;
+                        im[b + x] = im[a + x] - ti;
+                        re[a + x] += tr;
+                        im[a + x] += ti;
+                    }
+                }
+            }
+        }
+    }
+
+    private void swapRows(double[] values, int i, int j) {
+        int a = i * size;
+        int b = j * size;
+        for (int x = 0; x < size; x++) {
+            double t = values[a + x];
+            values[a + x] = values[b + x];
+            values[b + x] = t;
+        }
+    }
+
+    /**
+     * Transposes in square blocks small enough for both of a pair to stay in cache.
+     */
+    private void transpose(double[] values) {
+        int blockSize = Math.min(size, 32);
+        for (int by = 0; by < size; by += blockSize) {
+            for (int bx = by; bx < size; bx += blockSize) {
+                for (int y = by; y < by + blockSize; y++) {
+                    for (int x = bx == by ? y + 1 : bx; x < bx + blockSize; x++) {
+                        double t = values[y * size + x];
+                        values[y * size + x] = values[x * size + y];
+                        values[x * size + y] = t;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package ImageProcessing;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This software falls under the MIT license, as follows:
+ * Copyright (C) 2012
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * <p/>
+ * The hysteresis step of the Canny detector. Pixels above the high threshold are edges, and so is any pixel above
+ * the low threshold that is 8-connected to an edge, however long the chain between them. Edges are followed from
+ * every strong pixel with an explicit stack, so each pixel is pushed at most once and the whole thing is O(N).
+ * <p/>
+ * The stack is kept between calls, so reusing an instance on same sized frames doesn't allocate.
+ */
+public class Hysteresis {
+    private final int lowThreshold;
+    private final int highThreshold;
+    private int[] stack = new int[0];
+    private int strongPixels;
+    private int linkedPixels;
+
+    public Hysteresis(int lowThreshold, int highThreshold) {
+        this.lowThreshold = lowThreshold;
+        this.highThreshold = highThreshold;
+    }
+
+    public PlanarImage apply(PlanarImage nonMax) {
+        PlanarImage output = new PlanarImage(nonMax.getWidth(), nonMax.getHeight(), 1);
+        apply(nonMax, output);
+        return output;
+    }
+
+    /**
+     * Writes 255 for every edge pixel of nonMax into the first plane of output, and 0 everywhere else.
+     */
+    public void apply(PlanarImage nonMax, PlanarImage output) {
+        apply(ByteBuffer.wrap(nonMax.getIntensityPlane()), nonMax.getStride(), ByteBuffer.wrap(output.getPlane(0)),
+                output.getStride(), nonMax.getWidth(), nonMax.getHeight());
+    }
+
+    /**
+     * The same as {@link #apply(PlanarImage, PlanarImage)} for planes held in buffers, such as the memory mapped
+     * planes of a {@link MappedImage}, so neither image has to be brought onto the heap.
+     */
+    public void apply(ByteBuffer in, int inStride, ByteBuffer out, int outStride, int width, int height) {
+        strongPixels = 0;
+        linkedPixels = 0;
+
+        int top = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if ((in.get(y * inStride + x) & 0xff) > highThreshold) {
+                    out.put(y * outStride + x, (byte) 0xff);
+                    top = push(top, y * width + x);
+                    strongPixels++;
+                } else {
+                    out.put(y * outStride + x, (byte) 0);
+                }
+            }
+        }
+
+        while (top > 0) {
+            int index = stack[--top];
+            int x = index % width;
+            int y = index / width;
+            int yStart = Math.max(0, y - 1);
+            int yEnd = Math.min(height - 1, y + 1);
+            int xStart = Math.max(0, x - 1);
+            int xEnd = Math.min(width - 1, x + 1);
+            for (int j = yStart; j <= yEnd; j++) {
+                for (int i = xStart; i <= xEnd; i++) {
+                    int o = j * outStride + i;
+                    if (out.get(o) == 0 && (in.get(j * inStride + i) & 0xff) > lowThreshold) {
+                        out.put(o, (byte) 0xff);
+                        top = push(top, j * width + i);
+                        linkedPixels++;
+                    }
+                }
+            }
+        }
+    }
+
+    private int push(int top, int index) {
+        if (top == stack.length) {
+            int[] grown = new int[Math.max(1024, stack.length * 2)];
+            System.arraycopy(stack, 0, grown, 0, top);
+            stack = grown;
+        }
+        stack[top] = index;
+        return top + 1;
+    }
+
+    public int getLowThreshold() {
+        return lowThreshold;
+    }
+
+    public int getHighThreshold() {
+        return highThreshold;
+    }
+
+    /**
+     * The number of pixels above the high threshold in the last image processed.
+     */
+    public int getStrongPixelCount() {
+        return strongPixels;
+    }
+
+    /**
+     * The number of weak pixels the last image promoted to edges by connecting them to a strong one.
+     */
+    public int getLinkedPixelCount() {
+        return linkedPixels;
+    }
+
+    public int getEdgePixelCount() {
+        return strongPixels + linkedPixels;
+    }
+}
@@ -3,10 +3,17 @@ package ImageProcessing;
 import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
 import java.awt.image.Raster;
 import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
+import java.util.Hashtable;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * This software falls under the MIT license, as follows:
@@ -29,43 +36,132 @@ import java.io.IOException;
  * Date: 12/8/12
  */
 public class Image extends BufferedImage {
+    static final float[][] CANNY_X_SOBEL = {{-1, -2, -1},
+            {0, 0, 0},
+            {1, 2, 1}};
+    static final float[][] CANNY_Y_SOBEL = {{1, 0, -1},
+            {2, 0, -2},
+            {1, 0, -1}};
 
     public Image(int width, int height, int imageType) {
         super(width, height, imageType);
     }
 
     public Image(Image toCopy){
-        super(toCopy.getWidth(), toCopy.getHeight(), toCopy.getType());
-        for(int y = 0; y < toCopy.getHeight(); y++){
-            for(int x = 0; x < toCopy.getWidth(); x++){
-                this.setRGB(x, y, toCopy.getRGB(x, y));
+        this((BufferedImage) toCopy);
+    }
+
+    /**
+     * Copies the image. Types that can't be recreated from their type alone, such as the TYPE_CUSTOM images some PNG
+     * decoders produce and palette images, are converted to INT_RGB, or INT_ARGB if they have alpha.
+     */
+    public Image(BufferedImage toCopy){
+        super(toCopy.getWidth(), toCopy.getHeight(), normalisedType(toCopy));
+        copyPixels(toCopy, this);
+    }
+
+    private Image(ColorModel colorModel, WritableRaster raster, boolean premultiplied, Hashtable<?, ?> properties) {
+        super(colorModel, raster, premultiplied, properties);
+    }
+
+    /**
+     * Adopts the image's raster rather than copying it, so the result shares its pixels with img. Images that are
+     * already an Image are returned as they are. Wrapped images keep their type, even TYPE_CUSTOM, and operations on
+     * a TYPE_CUSTOM image produce INT_RGB results.
+     */
+    public static Image wrap(BufferedImage img) {
+        if (img instanceof Image) {
+            return (Image) img;
+        }
+        Hashtable<String, Object> properties = null;
+        String[] names = img.getPropertyNames();
+        if (names != null) {
+            properties = new Hashtable<String, Object>();
+            for (String name : names) {
+                properties.put(name, img.getProperty(name));
             }
         }
+        return new Image(img.getColorModel(), img.getRaster(), img.isAlphaPremultiplied(), properties);
     }
 
-    public Image(BufferedImage toCopy){
-        super(toCopy.getWidth(), toCopy.getHeight(), toCopy.getType());
-        for(int y = 0; y < toCopy.getHeight(); y++){
-            for(int x = 0; x < toCopy.getWidth(); x++){
-                this.setRGB(x, y, toCopy.getRGB(x, y));
+    /**
+     * The type a copy of img is made with: img's own type when a BufferedImage of that type can hold the same pixels,
+     * otherwise INT_RGB or INT_ARGB.
+     */
+    static int normalisedType(BufferedImage img) {
+        switch (img.getType()) {
+            case BufferedImage.TYPE_CUSTOM:
+            case BufferedImage.TYPE_BYTE_BINARY:
+            case BufferedImage.TYPE_BYTE_INDEXED:
+                return img.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+            default:
+                return img.getType();
+        }
+    }
+
+    /**
+     * Copies src into dest, which must be the same size. Images with identical rasters are copied a bank at a time,
+     * images of the same type a row of raw samples at a time, and anything else a row of ARGB pixels at a time.
+     */
+    static void copyPixels(BufferedImage src, BufferedImage dest) {
+        int width = src.getWidth();
+        int height = src.getHeight();
+        WritableRaster from = src.getRaster();
+        WritableRaster to = dest.getRaster();
+        if (src.getType() != dest.getType() || src.getType() == BufferedImage.TYPE_CUSTOM) {
+            int[] row = new int[width];
+            for (int y = 0; y < height; y++) {
+                src.getRGB(0, y, width, 1, row, 0, width);
+                dest.setRGB(0, y, width, 1, row, 0, width);
+            }
+        } else if (!copyBanks(from, to)) {
+            Object row = null;
+            for (int y = 0; y < height; y++) {
+                row = from.getDataElements(from.getMinX(), from.getMinY() + y, width, 1, row);
+                to.setDataElements(to.getMinX(), to.getMinY() + y, width, 1, row);
             }
         }
     }
 
-    public static Image convertToGrayScale(Image img) {
-        Image outputImage = new Image(img.getWidth(), img.getHeight(), img.getType());
-        for (int y = 0; y < img.getHeight(); y++) {
-            for (int x = 0; x < img.getWidth(); x++) {
-                int value = img.getRGB(x, y);
-                int red = (value & 0xff0000) >> 16;
-                int green = (value & 0xff00) >> 8;
-                int blue = value & 0xff;
-                int newValue = (red + green + blue) / 3;
-                newValue = 0xff000000 | (newValue << 16 | newValue << 8 | newValue);
-                outputImage.setRGB(x, y, newValue);
+    /**
+     * Copies the data arrays behind the rasters wholesale if they're laid out identically.
+     */
+    private static boolean copyBanks(Raster from, WritableRaster to) {
+        DataBuffer fromBuffer = from.getDataBuffer();
+        DataBuffer toBuffer = to.getDataBuffer();
+        if (from.getSampleModelTranslateX() != 0 || from.getSampleModelTranslateY() != 0
+                || to.getSampleModelTranslateX() != 0 || to.getSampleModelTranslateY() != 0
+                || !from.getSampleModel().equals(to.getSampleModel())
+                || fromBuffer.getClass() != toBuffer.getClass()
+                || fromBuffer.getNumBanks() != toBuffer.getNumBanks()
+                || fromBuffer.getSize() != toBuffer.getSize()) {
+            return false;
+        }
+        for (int bank = 0; bank < fromBuffer.getNumBanks(); bank++) {
+            int fromOffset = fromBuffer.getOffsets()[bank];
+            int toOffset = toBuffer.getOffsets()[bank];
+            if (fromBuffer instanceof DataBufferByte) {
+                System.arraycopy(((DataBufferByte) fromBuffer).getData(bank), fromOffset,
+                        ((DataBufferByte) toBuffer).getData(bank), toOffset, fromBuffer.getSize());
+            } else if (fromBuffer instanceof DataBufferInt) {
+                System.arraycopy(((DataBufferInt) fromBuffer).getData(bank), fromOffset,
+                        ((DataBufferInt) toBuffer).getData(bank), toOffset, fromBuffer.getSize());
+            } else if (fromBuffer instanceof DataBufferUShort) {
+                System.arraycopy(((DataBufferUShort) fromBuffer).getData(bank), fromOffset,
+                        ((DataBufferUShort) toBuffer).getData(bank), toOffset, fromBuffer.getSize());
+            } else {
+                return false;
             }
         }
-        return outputImage;
+        return true;
+    }
+
+    public static Image convertToGrayScale(Image img) {
+        Metrics.Timer timer = Metrics.start("convertToGrayScale");
+        PlanarImage source = fromBufferedImage(img, timer);
+        PlanarImage gray = PlanarImage.convertToGrayScale(source);
+        Metrics.stage(timer, "grayscale", gray);
+        return toImage(gray, img.getType(), timer);
     }
 
     /**
@@ -80,32 +176,59 @@ public class Image extends BufferedImage {
      * 1  2  1
      */
     public static Image detectEdgesSobel(Image sourceImage) {
+        Metrics.Timer timer = Metrics.start("detectEdgesSobel");
+        PlanarImage edges = detectEdgesSobel(fromBufferedImage(sourceImage, timer), timer);
+        return toImage(edges, sourceImage.getType(), timer);
+    }
+
+    public static PlanarImage detectEdgesSobel(PlanarImage sourceImage) {
+        Metrics.Timer timer = Metrics.start("detectEdgesSobel");
+        PlanarImage edges = detectEdgesSobel(sourceImage, timer);
+        Metrics.finish(timer, edges);
+        return edges;
+    }
+
+    private static PlanarImage detectEdgesSobel(PlanarImage sourceImage, Metrics.Timer timer) {
         float[][] ySobel = {{-1, 0, 1},
                 {-2, 0, 2},
                 {-1, 0, 1}};
         float[][] xSobel = {{-1, -2, -1},
                 {0, 0, 0},
                 {1, 2, 1}};
-        Image xCopy = convolveImage(sourceImage, xSobel, BoundaryPolicies.None);
-        Image yCopy = convolveImage(sourceImage, ySobel, BoundaryPolicies.None);
-        return addImages(xCopy, yCopy);
+        PlanarImage xCopy = PlanarImage.convolveImage(sourceImage, xSobel, BoundaryPolicies.None);
+        Metrics.stage(timer, "gradientX", xCopy);
+        PlanarImage yCopy = PlanarImage.convolveImage(sourceImage, ySobel, BoundaryPolicies.None);
+        Metrics.stage(timer, "gradientY", yCopy);
+        PlanarImage sum = PlanarImage.addImages(xCopy, yCopy);
+        Metrics.stage(timer, "add", sum);
+        return sum;
     }
 
     public static Image addImages(Image img1, Image img2) {
-        Image output = new Image(img1.getWidth(), img1.getHeight(), img1.getType());
-        for (int y = 0; y < img1.getHeight(); y++) {
-            for (int x = 0; x < img1.getWidth(); x++) {
-                int oldVal = img1.getRGB(x, y) & 0xff;
-                int newVal = img2.getRGB(x, y) & 0xff;
-                newVal += oldVal;
-                if (newVal > 255) {
-                    newVal = 255;
-                }
-                newVal = 0xff000000 | (newVal << 16 | newVal << 8 | newVal);
-                output.setRGB(x, y, newVal);
-            }
+        Metrics.Timer timer = Metrics.start("addImages");
+        PlanarImage first = fromBufferedImage(img1, timer);
+        PlanarImage second = fromBufferedImage(img2, timer);
+        PlanarImage sum = PlanarImage.addImages(first, second);
+        Metrics.stage(timer, "add", sum);
+        return toImage(sum, img1.getType(), timer);
+    }
+
+    /**
+     * Adds the images channel by channel, alpha included, rather than adding their blue channels as addImages does.
+     */
+    public static Image addChannels(Image img1, Image img2) {
+        Metrics.Timer timer = Metrics.start("addChannels");
+        PlanarImage first = fromBufferedImage(img1, true, timer);
+        PlanarImage second = fromBufferedImage(img2, first.getChannels() > PlanarImage.ALPHA, timer);
+        if (second.getChannels() < first.getChannels()) {
+            // An opaque second image adds nothing to the first one's alpha
+            second = new PlanarImage(second.getWidth(), second.getHeight(), second.getStride(), new byte[][]{
+                    second.getPlane(PlanarImage.RED), second.getPlane(PlanarImage.GREEN),
+                    second.getPlane(PlanarImage.BLUE), new byte[second.getPlane(0).length]});
         }
-        return output;
+        PlanarImage sum = PlanarImage.addChannels(first, second);
+        Metrics.stage(timer, "add", sum);
+        return toImage(sum, img1.getType(), timer);
     }
 
     /**
@@ -116,160 +239,146 @@ public class Image extends BufferedImage {
      * @param highThreshold The upper threshold for the hysteresis step
      */
     public static Image detectEdgesCanny(Image sourceImage, float sigma, int lowThreshold, int highThreshold) {
-        Image grayscale = convertToGrayScale(sourceImage);
+        Metrics.Timer timer = Metrics.start("detectEdgesCanny");
+        PlanarImage source = fromBufferedImage(sourceImage, timer);
+        PlanarImage edges = new PlanarImage(source.getWidth(), source.getHeight(), 1);
+        detectEdgesCanny(source, sigma, lowThreshold, highThreshold, edges, new Workspace(), timer);
+        return toImage(edges, sourceImage.getType(), timer);
+    }
+
+    public static PlanarImage detectEdgesCanny(PlanarImage sourceImage, float sigma, int lowThreshold, int highThreshold) {
+        PlanarImage edges = new PlanarImage(sourceImage.getWidth(), sourceImage.getHeight(), 1);
+        detectEdgesCanny(sourceImage, sigma, lowThreshold, highThreshold, edges, new Workspace());
+        return edges;
+    }
+
+    /**
+     * Detects edges into the first plane of dest, taking every intermediate image from the workspace and handing it
+     * back afterwards. Stages write over images whose contents are no longer needed, so a frame takes four scratch
+     * images, and once the workspace has seen a frame of this size further frames allocate nothing.
+     */
+    public static void detectEdgesCanny(PlanarImage sourceImage, float sigma, int lowThreshold, int highThreshold,
+                                        PlanarImage dest, Workspace workspace) {
+        Metrics.Timer timer = Metrics.start("detectEdgesCanny");
+        detectEdgesCanny(sourceImage, sigma, lowThreshold, highThreshold, dest, workspace, timer);
+        Metrics.finish(timer, dest);
+    }
+
+    private static void detectEdgesCanny(PlanarImage sourceImage, float sigma, int lowThreshold, int highThreshold,
+                                         PlanarImage dest, Workspace workspace, Metrics.Timer timer) {
+        int width = sourceImage.getWidth();
+        int height = sourceImage.getHeight();
+        PlanarImage grayscale = workspace.acquire(width, height, 1);
+        PlanarImage.convertToGrayScale(sourceImage, grayscale);
+        Metrics.stage(timer, "grayscale", grayscale);
         // smooth the image with the gaussian kernel
-        float[][] kernel = generateGaussianKernel(sigma);
-        Image smoothedImage = convolveImage(grayscale, kernel, BoundaryPolicies.None);
+        PlanarImage smoothedImage = workspace.acquire(width, height, 1);
+        PlanarImage.convolveImage(grayscale, workspace.gaussianKernel(sigma), BoundaryPolicies.None, smoothedImage,
+                workspace);
+        Metrics.stage(timer, "smoothing", smoothedImage);
 
         // Acquire the image gradients
-        float[][] ySobel = {{1, 0, -1},
-                {2, 0, -2},
-                {1, 0, -1}};
-        float[][] xSobel = {{-1, -2, -1},
-                {0, 0, 0},
-                {1, 2, 1}};
-        Image gX = convolveImage(smoothedImage, xSobel, BoundaryPolicies.None);
-        Image gY = convolveImage(smoothedImage, ySobel, BoundaryPolicies.None);
+        PlanarImage gX = grayscale;
+        PlanarImage gY = workspace.acquire(width, height, 1);
+        PlanarImage.convolveImage(smoothedImage, CANNY_X_SOBEL, BoundaryPolicies.None, gX, workspace);
+        PlanarImage.convolveImage(smoothedImage, CANNY_Y_SOBEL, BoundaryPolicies.None, gY, workspace);
+        Metrics.stage(timer, "gradients", gY);
 
         // Determine image angles
-        Image angles = calculateImageAngles(gX, gY);
+        PlanarImage angles = smoothedImage;
+        PlanarImage.calculateImageAngles(gX, gY, angles);
+        Metrics.stage(timer, "angles", angles);
 
-        Image gradient = calculateGradientImage(gX, gY);
+        PlanarImage gradient = workspace.acquire(width, height, 1);
+        PlanarImage.calculateGradientImage(gX, gY, gradient);
+        Metrics.stage(timer, "magnitude", gradient);
 
-        Image nonMax = calculateNonMaximalSuppression(gradient, angles);
+        PlanarImage nonMax = gX;
+        PlanarImage.calculateNonMaximalSuppression(gradient, angles, nonMax);
+        Metrics.stage(timer, "nonMaxSuppression", nonMax);
 
-        Image hyst = applyHysteresis(nonMax, lowThreshold, highThreshold);
+        Hysteresis hysteresis = workspace.hysteresis(lowThreshold, highThreshold);
+        hysteresis.apply(nonMax, dest);
+        Metrics.stage(timer, "hysteresis", dest);
+        Metrics.hysteresis(timer, hysteresis);
 
-        return hyst;
+        workspace.release(grayscale);
+        workspace.release(smoothedImage);
+        workspace.release(gY);
+        workspace.release(gradient);
+    }
+
+    /**
+     * The same as {@link #detectEdgesCanny(Image, float, int, int)}, but writes the edges into dest and takes its
+     * scratch images from the workspace.
+     */
+    public static void detectEdgesCanny(Image sourceImage, float sigma, int lowThreshold, int highThreshold,
+                                        Image dest, Workspace workspace) {
+        Metrics.Timer timer = Metrics.start("detectEdgesCanny");
+        PlanarImage source = workspace.acquire(sourceImage.getWidth(), sourceImage.getHeight(), 3);
+        PlanarImage.fromBufferedImage(sourceImage, source);
+        Metrics.stage(timer, "fromBufferedImage", source);
+        PlanarImage edges = workspace.acquire(sourceImage.getWidth(), sourceImage.getHeight(), 1);
+        detectEdgesCanny(source, sigma, lowThreshold, highThreshold, edges, workspace, timer);
+        edges.writeTo(dest);
+        Metrics.stage(timer, "writeTo", edges);
+        Metrics.finish(timer, edges);
+        workspace.release(source);
+        workspace.release(edges);
+    }
+
+    /**
+     * Detects edges with the fused {@link CannyDetector}, which streams rows through every stage instead of building
+     * an intermediate image for each one. Its Gaussian is sized from sigma, and its gradients keep their sign.
+     */
+    public static Image detectEdgesCannyFused(Image sourceImage, float sigma, int lowThreshold, int highThreshold) {
+        Metrics.Timer timer = Metrics.start("detectEdgesCannyFused");
+        PlanarImage source = fromBufferedImage(sourceImage, timer);
+        CannyDetector detector = new CannyDetector(sigma, lowThreshold, highThreshold);
+        // Every stage up to hysteresis runs a row at a time, so they can only be timed together
+        PlanarImage nonMax = detector.suppressNonMaxima(source);
+        Metrics.stage(timer, "nonMaxSuppression", nonMax);
+        PlanarImage edges = detector.getHysteresis().apply(nonMax);
+        Metrics.stage(timer, "hysteresis", edges);
+        Metrics.hysteresis(timer, detector.getHysteresis());
+        return toImage(edges, sourceImage.getType(), timer);
     }
 
     public static Image applyHysteresis(Image nonMax, int lThresh, int hThresh) {
-        Image output = new Image(nonMax.getWidth(), nonMax.getHeight(), nonMax.getType());
-        boolean changed = true;
-        int count = 0;
-        for (int y = 0; y < nonMax.getHeight(); y++) {
-            for (int x = 0; x < nonMax.getWidth(); x++) {
-                if(nonMax.getGrayScalePixel(x, y) > hThresh){
-                    output.setRGB(x, y, 0xffffffff);
-                }else if(nonMax.getGrayScalePixel(x, y) < lThresh){
-                    output.setRGB(x, y, 0xff000000);
-                }
-            }
-        }
-        while (changed) {
-            count++;
-            if(count > 100){
-                break;
-            }
-            changed = false;
-            for (int y = 1; y < output.getHeight() - 1; y++) {
-                for (int x = 1; x < output.getWidth() - 1; x++) {
-                    if(nonMax.getGrayScalePixel(x, y) > lThresh && nonMax.getGrayScalePixel(x, y) < hThresh){
-                        for(int j = -1; j < 2; j++){
-                            for(int i = -1; i < 2; i++){
-                                if(nonMax.getGrayScalePixel(x + i, y + j) > hThresh){
-                                    output.setRGB(x, y, 0xffffffff);
-                                    changed = true;
-                                }
-                            }
-                        }
-                    }
-                }
-            }
-        }
-        System.out.println(count);
-        return output;
+        Metrics.Timer timer = Metrics.start("applyHysteresis");
+        PlanarImage source = fromBufferedImage(nonMax, timer);
+        Hysteresis hysteresis = new Hysteresis(lThresh, hThresh);
+        PlanarImage edges = hysteresis.apply(source);
+        Metrics.stage(timer, "hysteresis", edges);
+        Metrics.hysteresis(timer, hysteresis);
+        return toImage(edges, nonMax.getType(), timer);
     }
 
     public static Image calculateGradientImage(Image gX, Image gY) {
-        Image output = new Image(gX.getWidth(), gX.getHeight(), gX.getType());
-        for (int y = 0; y < gX.getHeight(); y++) {
-            for (int x = 0; x < gX.getWidth(); x++) {
-                // somewhat inefficient euclidean distance. Could use manhattan distance for some extra speed
-                int xSquared = gX.getGrayScalePixel(x, y) * gX.getGrayScalePixel(x, y);
-                int ySquared = gY.getGrayScalePixel(x, y) * gY.getGrayScalePixel(x, y);
-                int newVal = (int) Math.round(Math.sqrt(xSquared + ySquared));
-                if(newVal > 255){
-                    newVal = 255;
-                }
-                newVal = 0xff000000 | (newVal << 16 | newVal << 8 | newVal);
-                output.setRGB(x, y, newVal);
-            }
-        }
-        return output;
+        Metrics.Timer timer = Metrics.start("calculateGradientImage");
+        PlanarImage x = fromBufferedImage(gX, timer);
+        PlanarImage y = fromBufferedImage(gY, timer);
+        PlanarImage gradient = PlanarImage.calculateGradientImage(x, y);
+        Metrics.stage(timer, "magnitude", gradient);
+        return toImage(gradient, gX.getType(), timer);
     }
 
     public static Image calculateNonMaximalSuppression(Image gradientImage, Image angleImage) {
-        Image output = new Image(gradientImage);
-        int nonMaxCount = 0;
-        for (int y = 1; y < gradientImage.getHeight() - 1; y++) {
-            for (int x = 1; x < gradientImage.getWidth() - 1; x++) {
-                // Get the appropriate neighbor intensities, based on the current pixel's angle
-                int firstNeighbor = 0;
-                int secondNeighbor = 0;
-                int currentPixel = gradientImage.getGrayScalePixel(x, y);
-                if (angleImage.getGrayScalePixel(x, y) == 0) {
-                    firstNeighbor = gradientImage.getGrayScalePixel(x - 1, y);
-                    secondNeighbor = gradientImage.getGrayScalePixel(x + 1, y);
-                } else if (angleImage.getGrayScalePixel(x, y) == 90) {
-                    firstNeighbor = gradientImage.getGrayScalePixel(x, y - 1);
-                    secondNeighbor = gradientImage.getGrayScalePixel(x, y + 1);
-                } else if (angleImage.getGrayScalePixel(x, y) == 45) {
-                    firstNeighbor = gradientImage.getGrayScalePixel(x + 1, y + 1);
-                    secondNeighbor = gradientImage.getGrayScalePixel(x - 1, y - 1);
-                } else if (angleImage.getGrayScalePixel(x, y) == 135) {
-                    firstNeighbor = gradientImage.getGrayScalePixel(x + 1, y - 1);
-                    secondNeighbor = gradientImage.getGrayScalePixel(x - 1, y + 1);
-                }
-                // If the current pixel is not a local max, remove it from the image
-                if (currentPixel < firstNeighbor || currentPixel < secondNeighbor) {
-                    output.setRGB(x, y, 0xff000000);
-                }
-            }
-        }
-        return output;
-    }
-
-    private static Image calculateImageAngles(Image gX, Image gY) {
-        Image output = new Image(gX.getWidth(), gX.getHeight(), gX.getType());
-        for (int y = 0; y < gX.getHeight(); y++) {
-            for (int x = 0; x < gY.getWidth(); x++) {
-                int newValue = 0;
-                float angle;
-                // To avoid divide by zeroes, we set the angle appropriately here
-                if (gX.getGrayScalePixel(x, y) == 0) {
-                    if (gY.getGrayScalePixel(x, y) == 0) {
-                        newValue = 0;
-                    } else {
-                        newValue = 90;
-                    }
-                } else {
-                    // We determine the angle as below, then round the angle to 0, 45, 90, or 135, depending on what's closest
-                    float gradY = gY.getGrayScalePixel(x, y);
-                    float gradX = gX.getGrayScalePixel(x, y);
-                    angle = (float) Math.toDegrees(Math.atan(gradY / gradX));
-                    if (angle >= 157.5 || angle < 22.5) {
-                        newValue = 0;
-                    } else if (angle >= 22.5 && angle < 67.5) {
-                        newValue = 135;
-                    } else if (angle >= 67.5 && angle < 112.5) {
-                        newValue = 90;
-                    } else if (angle >= 112.5 && angle < 157.5) {
-                        newValue = 45;
-                    }
-                }
-                newValue = 0xff000000 | (newValue << 16) | (newValue << 8) | newValue;
-                output.setRGB(x, y, newValue);
-            }
-        }
-        return output;
+        Metrics.Timer timer = Metrics.start("calculateNonMaximalSuppression");
+        PlanarImage gradient = fromBufferedImage(gradientImage, timer);
+        PlanarImage angles = fromBufferedImage(angleImage, timer);
+        PlanarImage nonMax = PlanarImage.calculateNonMaximalSuppression(gradient, angles);
+        Metrics.stage(timer, "nonMaxSuppression", nonMax);
+        return toImage(nonMax, gradientImage.getType(), timer);
     }
 
     public int[][] toGrayScaleArray() {
         int[][] values = new int[getWidth()][getHeight()];
+        int[] row = new int[getWidth()];
         for (int y = 0; y < getHeight(); y++) {
+            getRGB(0, y, getWidth(), 1, row, 0, getWidth());
             for (int x = 0; x < getWidth(); x++) {
-                values[x][y] = getRGB(x, y) & 0xff;
+                values[x][y] = row[x] & 0xff;
             }
         }
         return values;
@@ -290,60 +399,158 @@ public class Image extends BufferedImage {
         return gaussianKernel;
     }
 
+    /**
+     * Smooths the image with a Gaussian sized from sigma, applied as two 1D passes.
+     */
+    public static Image smoothGaussian(Image sourceImage, float sigma, BoundaryPolicies p) {
+        Metrics.Timer timer = Metrics.start("smoothGaussian");
+        PlanarImage source = fromBufferedImage(sourceImage, timer);
+        PlanarImage smoothed = PlanarImage.smoothGaussian(source, sigma, p);
+        Metrics.stage(timer, "smoothing", smoothed);
+        return toImage(smoothed, sourceImage.getType(), timer);
+    }
+
+    /**
+     * Smooths every colour channel, and alpha if the image has it, keeping the image in colour.
+     */
+    public static Image smoothGaussianChannels(Image sourceImage, float sigma, BoundaryPolicies p) {
+        Metrics.Timer timer = Metrics.start("smoothGaussianChannels");
+        PlanarImage source = fromBufferedImage(sourceImage, true, timer);
+        PlanarImage smoothed = PlanarImage.smoothGaussianChannels(source, sigma, p);
+        Metrics.stage(timer, "smoothing", smoothed);
+        return toImage(smoothed, sourceImage.getType(), timer);
+    }
+
+    /**
+     * Averages each pixel's (2 * radiusX + 1) x (2 * radiusY + 1) window through a summed-area table, which costs the
+     * same whatever the window size. To filter one image at several sizes, build an {@link IntegralImage} once instead.
+     */
+    public static Image boxFilter(Image sourceImage, int radiusX, int radiusY, BoundaryPolicies p) {
+        Metrics.Timer timer = Metrics.start("boxFilter");
+        PlanarImage source = fromBufferedImage(sourceImage, timer);
+        IntegralImage table = new IntegralImage(source, p, Math.max(radiusX, radiusY));
+        PlanarImage mean = table.localMean(radiusX, radiusY);
+        Metrics.stage(timer, "localMean", mean);
+        return toImage(mean, sourceImage.getType(), timer);
+    }
+
+    /**
+     * The standard deviation of each pixel's window, worked out from summed-area tables of the pixels and their
+     * squares, so like {@link #boxFilter} it costs the same whatever the window size.
+     */
+    public static Image localStandardDeviation(Image sourceImage, int radiusX, int radiusY, BoundaryPolicies p) {
+        Metrics.Timer timer = Metrics.start("localStandardDeviation");
+        PlanarImage source = fromBufferedImage(sourceImage, timer);
+        IntegralImage table = new IntegralImage(source, p, Math.max(radiusX, radiusY), true);
+        PlanarImage deviation = table.localStandardDeviation(radiusX, radiusY);
+        Metrics.stage(timer, "localStandardDeviation", deviation);
+        return toImage(deviation, sourceImage.getType(), timer);
+    }
+
+    /**
+     * Grayscale erosion with a width x height rectangle. See {@link Morphology}, which also has lines, and a packed
+     * fast path for edge maps held as {@link BinaryImage}s.
+     */
+    public static Image erode(Image sourceImage, int width, int height) {
+        Metrics.Timer timer = Metrics.start("erode");
+        PlanarImage source = fromBufferedImage(sourceImage, timer);
+        PlanarImage eroded = Morphology.erode(source, width, height);
+        Metrics.stage(timer, "erode", eroded);
+        return toImage(eroded, sourceImage.getType(), timer);
+    }
+
+    public static Image dilate(Image sourceImage, int width, int height) {
+        Metrics.Timer timer = Metrics.start("dilate");
+        PlanarImage source = fromBufferedImage(sourceImage, timer);
+        PlanarImage dilated = Morphology.dilate(source, width, height);
+        Metrics.stage(timer, "dilate", dilated);
+        return toImage(dilated, sourceImage.getType(), timer);
+    }
+
+    public static Image open(Image sourceImage, int width, int height) {
+        Metrics.Timer timer = Metrics.start("open");
+        PlanarImage source = fromBufferedImage(sourceImage, timer);
+        PlanarImage opened = Morphology.open(source, width, height);
+        Metrics.stage(timer, "open", opened);
+        return toImage(opened, sourceImage.getType(), timer);
+    }
+
+    public static Image close(Image sourceImage, int width, int height) {
+        Metrics.Timer timer = Metrics.start("close");
+        PlanarImage source = fromBufferedImage(sourceImage, timer);
+        PlanarImage closed = Morphology.close(source, width, height);
+        Metrics.stage(timer, "close", closed);
+        return toImage(closed, sourceImage.getType(), timer);
+    }
+
     public void convolveImage(Image sourceImage, float[][] filter) {
         convolveImage(sourceImage, filter, BoundaryPolicies.None);
     }
 
     public static Image convolveImage(Image sourceImage, float[][] filter, BoundaryPolicies p) {
-        Image output = new Image(sourceImage.getWidth(), sourceImage.getHeight(), sourceImage.getType());
-        int filterWidth = filter[0].length;
-        int filterHeight = filter.length;
-        float fSum = getFilterSum(filter);
-        if (Math.abs(fSum) < 0.0001) {
-            fSum = 1;
-        }
+        Metrics.Timer timer = Metrics.start("convolveImage");
+        PlanarImage source = fromBufferedImage(sourceImage, timer);
+        PlanarImage convolved = PlanarImage.convolveImage(source, filter, p);
+        Metrics.stage(timer, "convolution", convolved);
+        return toImage(convolved, sourceImage.getType(), timer);
+    }
 
-        int fW = filterWidth / 2;
-        int fH = filterHeight / 2;
-        for (int y = 0; y < sourceImage.getHeight(); y++) {
-            for (int x = 0; x < sourceImage.getWidth(); x++) {
-                float filterSum = 0;
-                for (int fY = -1 * fH; fY <= fH; fY++) {
-                    for (int fX = -1 * fW; fX <= fW; fX++) {
-                        int iX = x + fX;
-                        int iY = y + fY;
-                        int pixelValue = 0;
-                        if (iX < 0 || iX >= sourceImage.getWidth() || iY < 0 || iY >= sourceImage.getHeight()) {
-                            if (p == BoundaryPolicies.None) {
-                                break;
-                            }
-                        } else {
-                            // We're really only supporting grayscale images right now, so we just need one color channel
-                            pixelValue = sourceImage.getRGB(iX, iY) & 0xff;
-                        }
-                        filterSum += (float) pixelValue * filter[fX + fW][fY + fH];
-                    }
-                }
-                // Once again, we're just doing grayscale for now
-                int filterTotal = Math.abs(Math.round(filterSum / fSum));
-                if (filterTotal > 255) {
-                    filterTotal = 255;
-                }
-                int newPixelValue = 0xff000000 | (filterTotal << 16 | filterTotal << 8 | filterTotal);
-                output.setRGB(x, y, newPixelValue);
-            }
-        }
-        return output;
+    /**
+     * Convolves the image in parallel row bands on the given pool. The output is identical to the sequential version.
+     */
+    public static Image convolveImage(Image sourceImage, float[][] filter, BoundaryPolicies p, ForkJoinPool pool) {
+        Metrics.Timer timer = Metrics.start("convolveImage");
+        PlanarImage source = fromBufferedImage(sourceImage, timer);
+        PlanarImage convolved = PlanarImage.convolveImage(source, filter, p, pool);
+        Metrics.stage(timer, "convolution", convolved);
+        return toImage(convolved, sourceImage.getType(), timer);
+    }
+
+    /**
+     * Convolves every colour channel, and alpha if the image has it, so the result stays in colour instead of being
+     * the blue channel written out as gray.
+     */
+    public static Image convolveChannels(Image sourceImage, float[][] filter, BoundaryPolicies p) {
+        Metrics.Timer timer = Metrics.start("convolveChannels");
+        PlanarImage source = fromBufferedImage(sourceImage, true, timer);
+        PlanarImage convolved = PlanarImage.convolveChannels(source, filter, p);
+        Metrics.stage(timer, "convolution", convolved);
+        return toImage(convolved, sourceImage.getType(), timer);
+    }
+
+    public static Image convolveChannels(Image sourceImage, float[][] filter, BoundaryPolicies p, ForkJoinPool pool) {
+        Metrics.Timer timer = Metrics.start("convolveChannels");
+        PlanarImage source = fromBufferedImage(sourceImage, true, timer);
+        PlanarImage convolved = PlanarImage.convolveChannels(source, filter, p, pool);
+        Metrics.stage(timer, "convolution", convolved);
+        return toImage(convolved, sourceImage.getType(), timer);
+    }
+
+    /**
+     * Converts an operator's input, timing the conversion as a stage of its own.
+     */
+    private static PlanarImage fromBufferedImage(Image img, Metrics.Timer timer) {
+        return fromBufferedImage(img, false, timer);
+    }
+
+    private static PlanarImage fromBufferedImage(Image img, boolean alpha, Metrics.Timer timer) {
+        PlanarImage planar = PlanarImage.fromBufferedImage(img, alpha);
+        Metrics.stage(timer, "fromBufferedImage", planar);
+        return planar;
+    }
+
+    /**
+     * Converts an operator's result back, timing the conversion, then reports the operator as finished.
+     */
+    private static Image toImage(PlanarImage result, int imageType, Metrics.Timer timer) {
+        Image image = result.toImage(imageType);
+        Metrics.stage(timer, "toImage", result);
+        Metrics.finish(timer, result);
+        return image;
     }
 
     public static float getFilterSum(float[][] filter) {
-        float sum = 0;
-        for (int y = 0; y < filter.length; y++) {
-            for (int x = 0; x < filter[0].length; x++) {
-                sum += filter[x][y];
-            }
-        }
-        return sum;
+        return PlanarImage.getFilterSum(filter);
     }
 
     public int getGrayScalePixel(int x, int y) {
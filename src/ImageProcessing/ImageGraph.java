@@ -0,0 +1,553 @@
+package ImageProcessing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This software falls under the MIT license, as follows:
+ * Copyright (C) 2012
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * <p/>
+ * Records image operations as a graph and only runs them when a result is asked for, so chains of operations can be
+ * planned as a whole rather than one full image at a time:
+ * <ul>
+ * <li>Asking for the same operation on the same inputs twice hands back the node made the first time, so shared
+ * inputs such as the gradients gX and gY are only ever computed once.</li>
+ * <li>Pointwise operations (grayscale, add, gradient magnitude, angles, threshold) are fused. Every pointwise node that
+ * is ready to run goes through a single pass down the image, a row at a time, and only the nodes that are asked for
+ * or that feed a stencil are written out in full. Anything in between only ever exists as a row.</li>
+ * <li>Stencil and whole-image operations (convolution, non-maximal suppression, hysteresis) need their inputs in full,
+ * so those inputs are materialised, and dropped again once nothing left to run reads them.</li>
+ * </ul>
+ * Every operation gives the same result as its counterpart in {@link PlanarImage}. A graph isn't thread safe.
+ * <p/>
+ * Evaluating keeps no pixels once it returns: every intermediate image is dropped as soon as the last node reading it
+ * has run, and the outputs belong to the caller. The graph does remember every node it has made, though, so that
+ * asking again hands back the same one, and a source node holds on to its image. A graph that lives across many
+ * frames should be {@link #clear}ed before each new frame's sources are added, or replaced with a new one.
+ */
+public class ImageGraph {
+    private final Map<Key, Node> nodes = new HashMap<Key, Node>();
+
+    public Node source(PlanarImage image) {
+        return intern(new Source(image), "source", new Node[0], image);
+    }
+
+    public Node grayScale(Node input) {
+        return intern(new Pointwise(input.width, input.height, input) {
+            void computeRow(RowView[] in, byte[] out, int o, int width) {
+                RowView view = in[0];
+                if (view.planes.length < 3) {
+                    System.arraycopy(view.planes[0], view.offset, out, o, width);
+                    return;
+                }
+                byte[] r = view.planes[PlanarImage.RED];
+                byte[] g = view.planes[PlanarImage.GREEN];
+                byte[] b = view.planes[PlanarImage.BLUE];
+                int i = view.offset;
+                for (int x = 0; x < width; x++) {
+                    out[o + x] = (byte) ((((r[i + x] & 0xff) + (g[i + x] & 0xff) + (b[i + x] & 0xff)) * 43691) >>> 17);
+                }
+            }
+        }, "grayScale", new Node[]{input});
+    }
+
+    public Node add(Node a, Node b) {
+        checkSameSize(a, b);
+        return intern(new Pointwise(a.width, a.height, a, b) {
+            void computeRow(RowView[] in, byte[] out, int o, int width) {
+                byte[] first = in[0].intensity();
+                byte[] second = in[1].intensity();
+                int i = in[0].offset;
+                int j = in[1].offset;
+                for (int x = 0; x < width; x++) {
+                    out[o + x] = (byte) Math.min(255, (first[i + x] & 0xff) + (second[j + x] & 0xff));
+                }
+            }
+        }, "add", new Node[]{a, b});
+    }
+
+    public Node gradientMagnitude(Node gX, Node gY) {
+        checkSameSize(gX, gY);
+        return intern(new Lookup(gX, gY, PlanarImage.GRADIENT_MAGNITUDES), "gradientMagnitude", new Node[]{gX, gY});
+    }
+
+    public Node angles(Node gX, Node gY) {
+        checkSameSize(gX, gY);
+        return intern(new Lookup(gX, gY, PlanarImage.IMAGE_ANGLES), "angles", new Node[]{gX, gY});
+    }
+
+    /**
+     * 255 where the input is above the threshold, 0 everywhere else.
+     */
+    public Node threshold(Node input, final int threshold) {
+        return intern(new Pointwise(input.width, input.height, input) {
+            void computeRow(RowView[] in, byte[] out, int o, int width) {
+                byte[] values = in[0].intensity();
+                int i = in[0].offset;
+                for (int x = 0; x < width; x++) {
+                    out[o + x] = (byte) ((values[i + x] & 0xff) > threshold ? 0xff : 0);
+                }
+            }
+        }, "threshold", new Node[]{input}, threshold);
+    }
+
+    /**
+     * Convolves with a copy of the filter, so changing the array afterwards doesn't change the node.
+     */
+    public Node convolve(Node input, float[][] filter, final BoundaryPolicies p) {
+        final float[][] kernel = new float[filter.length][];
+        for (int i = 0; i < filter.length; i++) {
+            kernel[i] = filter[i].clone();
+        }
+        return intern(new Eager(input.width, input.height, input) {
+            PlanarImage run(PlanarImage[] in) {
+                return PlanarImage.convolveImage(in[0], kernel, p);
+            }
+        }, "convolve", new Node[]{input}, kernel, p);
+    }
+
+    public Node smoothGaussian(Node input, final float sigma, final BoundaryPolicies p) {
+        return intern(new Eager(input.width, input.height, input) {
+            PlanarImage run(PlanarImage[] in) {
+                return PlanarImage.smoothGaussian(in[0], sigma, p);
+            }
+        }, "smoothGaussian", new Node[]{input}, sigma, p);
+    }
+
+    public Node suppressNonMaxima(Node gradient, Node angles) {
+        checkSameSize(gradient, angles);
+        return intern(new Eager(gradient.width, gradient.height, gradient, angles) {
+            PlanarImage run(PlanarImage[] in) {
+                return PlanarImage.calculateNonMaximalSuppression(in[0], in[1]);
+            }
+        }, "suppressNonMaxima", new Node[]{gradient, angles});
+    }
+
+    public Node hysteresis(Node nonMax, final int lowThreshold, final int highThreshold) {
+        return intern(new Eager(nonMax.width, nonMax.height, nonMax) {
+            PlanarImage run(PlanarImage[] in) {
+                return new Hysteresis(lowThreshold, highThreshold).apply(in[0]);
+            }
+        }, "hysteresis", new Node[]{nonMax}, lowThreshold, highThreshold);
+    }
+
+    /**
+     * The chain {@link Image#detectEdgesSobel(PlanarImage)} runs.
+     */
+    public Node sobel(Node input) {
+        float[][] ySobel = {{-1, 0, 1},
+                {-2, 0, 2},
+                {-1, 0, 1}};
+        float[][] xSobel = {{-1, -2, -1},
+                {0, 0, 0},
+                {1, 2, 1}};
+        return add(convolve(input, xSobel, BoundaryPolicies.None), convolve(input, ySobel, BoundaryPolicies.None));
+    }
+
+    /**
+     * The chain {@link Image#detectEdgesCanny(PlanarImage, float, int, int)} runs. The magnitude and the angles both
+     * read gX and gY, and are worked out together in a single pass.
+     */
+    public Node canny(Node input, float sigma, int lowThreshold, int highThreshold) {
+        Node smoothed = convolve(grayScale(input), Image.generateGaussianKernel(sigma), BoundaryPolicies.None);
+        Node gX = convolve(smoothed, Image.CANNY_X_SOBEL, BoundaryPolicies.None);
+        Node gY = convolve(smoothed, Image.CANNY_Y_SOBEL, BoundaryPolicies.None);
+        Node nonMax = suppressNonMaxima(gradientMagnitude(gX, gY), angles(gX, gY));
+        return hysteresis(nonMax, lowThreshold, highThreshold);
+    }
+
+    /**
+     * The number of distinct operations recorded, which doesn't grow when an operation is asked for again.
+     */
+    public int getNodeCount() {
+        return nodes.size();
+    }
+
+    /**
+     * Forgets every node, letting go of the source images and kernels they hold. Nodes made before can't be used with
+     * the graph afterwards.
+     */
+    public void clear() {
+        nodes.clear();
+    }
+
+    public PlanarImage evaluate(Node output) {
+        return evaluate(new Node[]{output})[0];
+    }
+
+    /**
+     * Runs everything the outputs depend on, sharing whatever they have in common, and returns them in order. Sources
+     * come back as they were passed in, everything else as a new image. Nothing is kept between calls.
+     */
+    public PlanarImage[] evaluate(Node... outputs) {
+        checkOwned(outputs);
+        // Work out which nodes have to exist in full: outputs, stencil and whole-image operations, and their inputs
+        Set<Node> materialised = new LinkedHashSet<Node>();
+        for (Node output : outputs) {
+            collect(output, materialised, true);
+        }
+        // Which materialised nodes read each one, so it can be dropped once they've all run
+        Map<Node, List<Node>> readers = new IdentityHashMap<Node, List<Node>>();
+        for (Node node : materialised) {
+            for (Node read : directReads(node, materialised)) {
+                List<Node> list = readers.get(read);
+                if (list == null) {
+                    list = new ArrayList<Node>();
+                    readers.put(read, list);
+                }
+                list.add(node);
+            }
+        }
+        Set<Node> keep = new LinkedHashSet<Node>(Arrays.asList(outputs));
+
+        Map<Node, PlanarImage> results = new IdentityHashMap<Node, PlanarImage>();
+        Set<Node> done = new LinkedHashSet<Node>();
+        while (done.size() < materialised.size()) {
+            List<Node> ready = new ArrayList<Node>();
+            for (Node node : materialised) {
+                if (!done.contains(node) && done.containsAll(directReads(node, materialised))) {
+                    ready.add(node);
+                }
+            }
+            List<Node> pointwise = new ArrayList<Node>();
+            for (Node node : ready) {
+                if (node instanceof Pointwise) {
+                    pointwise.add(node);
+                } else {
+                    results.put(node, ((Materialising) node).materialise(inputImages(node, results)));
+                }
+            }
+            if (!pointwise.isEmpty()) {
+                runFused(pointwise, materialised, results);
+            }
+            done.addAll(ready);
+            for (Node node : ready) {
+                for (Node read : directReads(node, materialised)) {
+                    if (!keep.contains(read) && done.containsAll(readers.get(read))) {
+                        results.remove(read);
+                    }
+                }
+            }
+        }
+
+        PlanarImage[] images = new PlanarImage[outputs.length];
+        for (int i = 0; i < outputs.length; i++) {
+            images[i] = results.get(outputs[i]);
+        }
+        return images;
+    }
+
+    private void collect(Node node, Set<Node> materialised, boolean required) {
+        if (required || !(node instanceof Pointwise)) {
+            if (materialised.contains(node)) {
+                return;
+            }
+            materialised.add(node);
+        }
+        for (Node input : node.inputs) {
+            // A stencil needs its inputs in full, a pointwise node only needs them a row at a time
+            collect(input, materialised, !(node instanceof Pointwise));
+        }
+    }
+
+    /**
+     * The materialised nodes a node reads while it runs. For a pointwise node that's the nearest materialised node down
+     * every path through its inputs, as everything in between is worked out a row at a time. A materialised pointwise
+     * node on the way counts as one of those, as it's read rather than worked out again.
+     */
+    private static Set<Node> directReads(Node node, Set<Node> materialised) {
+        Set<Node> reads = new LinkedHashSet<Node>();
+        if (node instanceof Pointwise) {
+            collectLeaves(node, materialised, reads, true);
+        } else {
+            reads.addAll(Arrays.asList(node.inputs));
+        }
+        return reads;
+    }
+
+    private static void collectLeaves(Node node, Set<Node> materialised, Set<Node> leaves, boolean root) {
+        if (!root && (!(node instanceof Pointwise) || materialised.contains(node))) {
+            leaves.add(node);
+            return;
+        }
+        for (Node input : node.inputs) {
+            collectLeaves(input, materialised, leaves, false);
+        }
+    }
+
+    private static PlanarImage[] inputImages(Node node, Map<Node, PlanarImage> results) {
+        PlanarImage[] images = new PlanarImage[node.inputs.length];
+        for (int i = 0; i < images.length; i++) {
+            images[i] = results.get(node.inputs[i]);
+        }
+        return images;
+    }
+
+    /**
+     * Works out the targets in one pass down the image. Pointwise nodes the targets depend on are worked out a row at a
+     * time into scratch rows, once per row however many nodes read them, unless they're materialised themselves.
+     */
+    private void runFused(List<Node> targets, Set<Node> materialised, Map<Node, PlanarImage> results) {
+        // Every pointwise node taking part, inputs before the nodes that read them
+        List<Pointwise> order = new ArrayList<Pointwise>();
+        Set<Node> visited = new LinkedHashSet<Node>();
+        for (Node target : targets) {
+            orderPointwise(target, materialised, targets, visited, order);
+        }
+
+        int width = targets.get(0).width;
+        int height = targets.get(0).height;
+        Map<Node, RowView> views = new IdentityHashMap<Node, RowView>();
+        List<RowView> imageViews = new ArrayList<RowView>();
+        for (Node target : targets) {
+            PlanarImage output = new PlanarImage(width, height, 1);
+            results.put(target, output);
+        }
+        for (Pointwise node : order) {
+            RowView view = new RowView();
+            PlanarImage output = results.get(node);
+            if (output != null && targets.contains(node)) {
+                view.planes = new byte[][]{output.getPlane(0)};
+                view.image = output;
+                imageViews.add(view);
+            } else {
+                view.planes = new byte[][]{new byte[width]};
+            }
+            views.put(node, view);
+            for (Node input : node.inputs) {
+                if (!(input instanceof Pointwise) || !order.contains(input)) {
+                    if (!views.containsKey(input)) {
+                        PlanarImage image = results.get(input);
+                        RowView leaf = new RowView();
+                        leaf.planes = new byte[image.getChannels()][];
+                        for (int c = 0; c < leaf.planes.length; c++) {
+                            leaf.planes[c] = image.getPlane(c);
+                        }
+                        leaf.image = image;
+                        views.put(input, leaf);
+                        imageViews.add(leaf);
+                    }
+                }
+            }
+        }
+
+        RowView[][] inputViews = new RowView[order.size()][];
+        for (int n = 0; n < order.size(); n++) {
+            Node node = order.get(n);
+            inputViews[n] = new RowView[node.inputs.length];
+            for (int i = 0; i < node.inputs.length; i++) {
+                inputViews[n][i] = views.get(node.inputs[i]);
+            }
+        }
+        for (int y = 0; y < height; y++) {
+            for (RowView view : imageViews) {
+                view.offset = y * view.image.getStride();
+            }
+            for (int n = 0; n < order.size(); n++) {
+                RowView out = views.get(order.get(n));
+                order.get(n).computeRow(inputViews[n], out.planes[0], out.offset, width);
+            }
+        }
+    }
+
+    private static void orderPointwise(Node node, Set<Node> materialised, List<Node> targets, Set<Node> visited,
+                                       List<Pointwise> order) {
+        if (visited.contains(node) || !(node instanceof Pointwise)) {
+            return;
+        }
+        // Materialised pointwise nodes from an earlier pass are read, not worked out again
+        if (materialised.contains(node) && !targets.contains(node)) {
+            return;
+        }
+        visited.add(node);
+        for (Node input : node.inputs) {
+            orderPointwise(input, materialised, targets, visited, order);
+        }
+        order.add((Pointwise) node);
+    }
+
+    private Node intern(Node node, String operation, Node[] inputs, Object... parameters) {
+        checkOwned(inputs);
+        Key key = new Key(operation, inputs, parameters);
+        Node existing = nodes.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        node.key = key;
+        nodes.put(key, node);
+        return node;
+    }
+
+    private void checkOwned(Node[] used) {
+        for (Node node : used) {
+            if (nodes.get(node.key) != node) {
+                throw new IllegalArgumentException(
+                        "Node belongs to a different graph, or to this one before it was cleared");
+            }
+        }
+    }
+
+    private static void checkSameSize(Node a, Node b) {
+        if (a.width != b.width || a.height != b.height) {
+            throw new IllegalArgumentException("Can't combine a " + a.width + "x" + a.height + " image with a "
+                    + b.width + "x" + b.height + " one");
+        }
+    }
+
+    /**
+     * An operation in the graph. Nodes are only made by a graph, and only mean anything to the graph that made them.
+     */
+    public abstract static class Node {
+        final int width;
+        final int height;
+        final Node[] inputs;
+        Key key;
+
+        Node(int width, int height, Node... inputs) {
+            this.width = width;
+            this.height = height;
+            this.inputs = inputs;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+    }
+
+    private interface Materialising {
+        PlanarImage materialise(PlanarImage[] inputs);
+    }
+
+    private static class Source extends Node implements Materialising {
+        private final PlanarImage image;
+
+        Source(PlanarImage image) {
+            super(image.getWidth(), image.getHeight());
+            this.image = image;
+        }
+
+        public PlanarImage materialise(PlanarImage[] inputs) {
+            return image;
+        }
+    }
+
+    private abstract static class Eager extends Node implements Materialising {
+        Eager(int width, int height, Node... inputs) {
+            super(width, height, inputs);
+        }
+
+        abstract PlanarImage run(PlanarImage[] inputs);
+
+        public PlanarImage materialise(PlanarImage[] inputs) {
+            return run(inputs);
+        }
+    }
+
+    private abstract static class Pointwise extends Node {
+        Pointwise(int width, int height, Node... inputs) {
+            super(width, height, inputs);
+        }
+
+        /**
+         * Works out one row of output from the same row of every input.
+         */
+        abstract void computeRow(RowView[] in, byte[] out, int o, int width);
+    }
+
+    private static class Lookup extends Pointwise {
+        private final byte[] table;
+
+        Lookup(Node gX, Node gY, byte[] table) {
+            super(gX.width, gX.height, gX, gY);
+            this.table = table;
+        }
+
+        void computeRow(RowView[] in, byte[] out, int o, int width) {
+            byte[] xPlane = in[0].intensity();
+            byte[] yPlane = in[1].intensity();
+            int i = in[0].offset;
+            int j = in[1].offset;
+            for (int x = 0; x < width; x++) {
+                out[o + x] = table[(xPlane[i + x] & 0xff) << 8 | (yPlane[j + x] & 0xff)];
+            }
+        }
+    }
+
+    /**
+     * Where the current row of a node is: a row of a materialised image, or a scratch row.
+     */
+    private static class RowView {
+        byte[][] planes;
+        int offset;
+        PlanarImage image;
+
+        /**
+         * The plane {@link PlanarImage#getIntensityPlane} would pick.
+         */
+        byte[] intensity() {
+            return planes.length >= 3 ? planes[PlanarImage.BLUE] : planes[0];
+        }
+    }
+
+    private static class Key {
+        private final String operation;
+        private final Node[] inputs;
+        private final Object[] parameters;
+
+        Key(String operation, Node[] inputs, Object[] parameters) {
+            this.operation = operation;
+            this.inputs = inputs;
+            this.parameters = parameters;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            if (!operation.equals(other.operation) || inputs.length != other.inputs.length) {
+                return false;
+            }
+            // Nodes are unique, so inputs compare by identity
+            for (int i = 0; i < inputs.length; i++) {
+                if (inputs[i] != other.inputs[i]) {
+                    return false;
+                }
+            }
+            return Arrays.deepEquals(parameters, other.parameters);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = operation.hashCode();
+            for (Node input : inputs) {
+                hash = hash * 31 + System.identityHashCode(input);
+            }
+            return hash * 31 + Arrays.deepHashCode(parameters);
+        }
+    }
+}
@@ -2,6 +2,7 @@ package ImageProcessing;
 
 import javax.swing.*;
 import java.awt.*;
+import java.awt.image.BufferedImage;
 
 /**
  * This software falls under the MIT license, as follows:
@@ -22,27 +23,91 @@ import java.awt.*;
  * <p/>
  * Created By: Eric Brown
  * Date: 12/8/12
+ * <p/>
+ * Shows an image that can be filled in a band at a time while it's still being worked out. The pixels live in an
+ * image compatible with the screen, which Java2D can keep in video memory, and each update only repaints the rows it
+ * changed. Everything here has to be called on the event dispatch thread.
  */
 public class ImagePanel extends JPanel {
-    private Image img;
+    private BufferedImage img;
     private int imageWidth;
     private int imageHeight;
 
-    public ImagePanel(Image img){
-        this.img = img;
-        imageHeight = img.getHeight();
-        imageWidth = img.getWidth();
+    /**
+     * A panel with nothing to show until {@link #reset} is called.
+     */
+    public ImagePanel() {
     }
 
-    public void paintComponent(Graphics g){
+    public ImagePanel(Image img) {
+        reset(img.getWidth(), img.getHeight());
+        Graphics2D g = this.img.createGraphics();
         g.drawImage(img, 0, 0, null);
+        g.dispose();
+    }
+
+    /**
+     * Starts again with a black image of the given size. The pixels are kept if the size hasn't changed, so the last
+     * result stays on screen until the next one has been drawn over it.
+     */
+    public void reset(int width, int height) {
+        if (img != null && width == imageWidth && height == imageHeight) {
+            return;
+        }
+        imageWidth = width;
+        imageHeight = height;
+        img = createCompatibleImage(width, height);
+        revalidate();
+        repaint();
     }
 
-    public int getImageWidth(){
+    /**
+     * Copies rows [y, y + rows) in from packed RGB pixels, one row after another, and repaints just those rows.
+     */
+    public void setRows(int y, int rows, int[] rgb) {
+        img.setRGB(0, y, imageWidth, rows, rgb, 0, imageWidth);
+        repaint(0, y, imageWidth, rows);
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        super.paintComponent(g);
+        if (img == null) {
+            return;
+        }
+        // Only copy the part of the image that was asked for rather than the whole thing
+        Rectangle clip = g.getClipBounds();
+        if (clip == null) {
+            g.drawImage(img, 0, 0, null);
+            return;
+        }
+        int x0 = Math.max(0, clip.x);
+        int y0 = Math.max(0, clip.y);
+        int x1 = Math.min(imageWidth, clip.x + clip.width);
+        int y1 = Math.min(imageHeight, clip.y + clip.height);
+        if (x0 < x1 && y0 < y1) {
+            g.drawImage(img, x0, y0, x1, y1, x0, y0, x1, y1, null);
+        }
+    }
+
+    @Override
+    public Dimension getPreferredSize() {
+        return new Dimension(imageWidth, imageHeight);
+    }
+
+    public int getImageWidth() {
         return imageWidth;
     }
 
-    public int getImageHeight(){
+    public int getImageHeight() {
         return imageHeight;
     }
+
+    private static BufferedImage createCompatibleImage(int width, int height) {
+        if (GraphicsEnvironment.isHeadless()) {
+            return new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        }
+        return GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration()
+                .createCompatibleImage(width, height, Transparency.OPAQUE);
+    }
 }
@@ -0,0 +1,230 @@
+package ImageProcessing;
+
+/**
+ * This software falls under the MIT license, as follows:
+ * Copyright (C) 2012
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * <p/>
+ * A summed-area table over an image's intensity plane. Once it's built, the sum over any rectangle is four lookups,
+ * so box filters, local means and local variances cost the same per pixel whatever the window size, where the same
+ * filter passed to {@link PlanarImage#convolveImage} as a k x k kernel costs O(k^2).
+ * <p/>
+ * Pixels outside the image read the way the boundary policy says, with the same meaning as for convolveImage. To
+ * make that possible the table covers a margin around the image as wide as the largest radius it will be asked for,
+ * so one table serves any window up to that radius. Zero padding and None only ever read zeros outside the image, so
+ * they need no margin and take any radius. Like convolveImage, None drops the whole of a window row that starts off
+ * the left edge.
+ * <p/>
+ * Sums are held as longs, so they're exact for any image that fits in memory. The table of squares that the variance
+ * needs is only built when asked for.
+ */
+public class IntegralImage {
+    private final int width;
+    private final int height;
+    private final BoundaryPolicies policy;
+    private final int margin;
+    // Both tables are (width + 2 * margin + 1) columns by (height + 2 * margin + 1) rows, with an extra row and column
+    // of zeros at the start, so table[y * tableStride + x] is the sum over every pixel above and left of (x, y)
+    private final int tableStride;
+    private final long[] sums;
+    private final long[] squares;
+
+    /**
+     * @param maxRadius The largest window radius, in either direction, that the table will be asked about
+     * @param squares   Whether to also build the table of squares, which only the variance needs
+     */
+    public IntegralImage(PlanarImage source, BoundaryPolicies p, int maxRadius, boolean squares) {
+        if (maxRadius < 0) {
+            throw new IllegalArgumentException("Radius can't be negative: " + maxRadius);
+        }
+        this.width = source.getWidth();
+        this.height = source.getHeight();
+        this.policy = p;
+        this.margin = readsZeros(p) ? 0 : maxRadius;
+        int tableWidth = width + 2 * margin;
+        int tableHeight = height + 2 * margin;
+        this.tableStride = tableWidth + 1;
+        long size = (long) tableStride * (tableHeight + 1);
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("A " + width + "x" + height + " image with a margin of " + margin
+                    + " is too big for a summed-area table");
+        }
+        this.sums = new long[(int) size];
+        this.squares = squares ? new long[(int) size] : null;
+
+        int[] columns = new int[tableWidth];
+        for (int x = 0; x < tableWidth; x++) {
+            columns[x] = PlanarImage.boundaryIndex(x - margin, width, p);
+        }
+        byte[] plane = source.getIntensityPlane();
+        int stride = source.getStride();
+        for (int y = 0; y < tableHeight; y++) {
+            int row = PlanarImage.boundaryIndex(y - margin, height, p) * stride;
+            int above = y * tableStride + 1;
+            int current = above + tableStride;
+            long rowSum = 0;
+            long rowSquares = 0;
+            for (int x = 0; x < tableWidth; x++) {
+                int value = plane[row + columns[x]] & 0xff;
+                rowSum += value;
+                sums[current + x] = sums[above + x] + rowSum;
+                if (squares) {
+                    rowSquares += value * value;
+                    this.squares[current + x] = this.squares[above + x] + rowSquares;
+                }
+            }
+        }
+    }
+
+    /**
+     * A table for one window radius, without squares.
+     */
+    public IntegralImage(PlanarImage source, BoundaryPolicies p, int maxRadius) {
+        this(source, p, maxRadius, false);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public BoundaryPolicies getBoundaryPolicy() {
+        return policy;
+    }
+
+    /**
+     * The sum over the (2 * radiusX + 1) x (2 * radiusY + 1) window centred on (x, y).
+     */
+    public long boxSum(int x, int y, int radiusX, int radiusY) {
+        checkRadius(radiusX, radiusY);
+        return sum(sums, x, y, radiusX, radiusY);
+    }
+
+    /**
+     * The mean of each pixel's window, rounded to the nearest integer, which is what convolving with a
+     * (2 * radiusX + 1) x (2 * radiusY + 1) kernel of ones gives to within rounding.
+     */
+    public PlanarImage localMean(int radiusX, int radiusY) {
+        PlanarImage output = new PlanarImage(width, height, 1);
+        localMean(radiusX, radiusY, output);
+        return output;
+    }
+
+    /**
+     * Writes the local means into the first plane of output, which must be the same size as the image.
+     */
+    public void localMean(int radiusX, int radiusY, PlanarImage output) {
+        checkRadius(radiusX, radiusY);
+        checkOutput(output.getWidth(), output.getHeight());
+        long area = (long) (2 * radiusX + 1) * (2 * radiusY + 1);
+        byte[] out = output.getPlane(0);
+        for (int y = 0; y < height; y++) {
+            int o = y * output.getStride();
+            for (int x = 0; x < width; x++) {
+                // Round half up, in integers so it's exact however big the window
+                out[o + x] = (byte) ((2 * sum(sums, x, y, radiusX, radiusY) + area) / (2 * area));
+            }
+        }
+    }
+
+    /**
+     * The variance of each pixel's window, as width * height values in row order. Pixels the policy reads as zero
+     * count as zeros, the same as they do for the mean.
+     */
+    public float[] localVariance(int radiusX, int radiusY) {
+        float[] output = new float[width * height];
+        localVariance(radiusX, radiusY, output);
+        return output;
+    }
+
+    public void localVariance(int radiusX, int radiusY, float[] output) {
+        checkRadius(radiusX, radiusY);
+        if (squares == null) {
+            throw new IllegalStateException("This table was built without squares, so it can't give variances");
+        }
+        if (output.length < width * height) {
+            throw new IllegalArgumentException("Expected at least " + width * height + " values, got " + output.length);
+        }
+        double area = (double) (2 * radiusX + 1) * (2 * radiusY + 1);
+        for (int y = 0; y < height; y++) {
+            int o = y * width;
+            for (int x = 0; x < width; x++) {
+                double mean = sum(sums, x, y, radiusX, radiusY) / area;
+                double meanSquare = sum(squares, x, y, radiusX, radiusY) / area;
+                // Rounding can leave a flat window a hair below zero
+                output[o + x] = (float) Math.max(0, meanSquare - mean * mean);
+            }
+        }
+    }
+
+    /**
+     * The standard deviation of each pixel's window, rounded. It's at most 127.5, so unlike the variance it fits a
+     * byte image.
+     */
+    public PlanarImage localStandardDeviation(int radiusX, int radiusY) {
+        float[] variance = localVariance(radiusX, radiusY);
+        PlanarImage output = new PlanarImage(width, height, 1);
+        byte[] out = output.getPlane(0);
+        for (int i = 0; i < variance.length; i++) {
+            out[i] = (byte) Math.round(Math.sqrt(variance[i]));
+        }
+        return output;
+    }
+
+    private long sum(long[] table, int x, int y, int radiusX, int radiusY) {
+        int x0 = x - radiusX + margin;
+        int x1 = x + radiusX + margin + 1;
+        int y0 = y - radiusY + margin;
+        int y1 = y + radiusY + margin + 1;
+        if (margin == 0) {
+            // Only zeros lie outside the table
+            if (x0 < 0) {
+                if (policy == BoundaryPolicies.None) {
+                    return 0;
+                }
+                x0 = 0;
+            }
+            x1 = Math.min(x1, width);
+            y0 = Math.max(y0, 0);
+            y1 = Math.min(y1, height);
+        }
+        return table[y1 * tableStride + x1] - table[y0 * tableStride + x1]
+                - table[y1 * tableStride + x0] + table[y0 * tableStride + x0];
+    }
+
+    private void checkRadius(int radiusX, int radiusY) {
+        if (radiusX < 0 || radiusY < 0) {
+            throw new IllegalArgumentException("Radius can't be negative: " + radiusX + "x" + radiusY);
+        }
+        if (!readsZeros(policy) && (radiusX > margin || radiusY > margin)) {
+            throw new IllegalArgumentException("A " + radiusX + "x" + radiusY + " radius reaches past the margin of "
+                    + margin + " this table was built with");
+        }
+    }
+
+    private void checkOutput(int outputWidth, int outputHeight) {
+        if (outputWidth != width || outputHeight != height) {
+            throw new IllegalArgumentException("Expected a " + width + "x" + height + " destination, got "
+                    + outputWidth + "x" + outputHeight);
+        }
+    }
+
+    private static boolean readsZeros(BoundaryPolicies p) {
+        return p == BoundaryPolicies.ZeroPadding || p == BoundaryPolicies.None;
+    }
+}
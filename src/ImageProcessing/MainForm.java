@@ -2,10 +2,17 @@ package ImageProcessing;
 
 import javax.imageio.ImageIO;
 import javax.swing.*;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This software falls under the MIT license, as follows:
@@ -26,30 +33,205 @@ import java.io.IOException;
  * <p/>
  * Created By: Eric Brown
  * Date: 12/8/12
+ * <p/>
+ * Shows the Canny edges of an image and lets the sigma and thresholds be tuned while watching. Decoding and detection
+ * run on a background thread, which streams rows through a {@link CannyDetector} and {@link StreamingHysteresis} and
+ * hands each finished band of rows to the panel, so the top of the image shows up long before the bottom is done.
+ * Changing a parameter cancels whatever is still running, and bands from a cancelled run are thrown away rather
+ * than drawn.
  */
 public class MainForm extends JFrame {
-    private ImagePanel background;
+    // Rows per update sent to the panel
+    private static final int BAND_HEIGHT = 32;
+    // Rows above and below each block of hysteresis that weak edges can reach through
+    private static final int HYSTERESIS_CONTEXT = 32;
+
+    private final File file;
+    private final ImagePanel background = new ImagePanel();
+    private final JSpinner sigma = new JSpinner(new SpinnerNumberModel(1.4, 0.5, 10.0, 0.1));
+    private final JSlider lowThreshold = new JSlider(0, 255, 25);
+    private final JSlider highThreshold = new JSlider(0, 255, 70);
+    private final JLabel status = new JLabel(" ");
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "MainForm worker");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    // Bumped for every new run, so work and updates belonging to an older one can tell they're stale
+    private final AtomicInteger generation = new AtomicInteger();
+    private Future<?> running;
+    // Only touched on the worker thread, so the file is decoded once however many times the parameters change
+    private PlanarImage source;
 
-    public MainForm(){
+    public MainForm() {
+        this(new File("test.png"));
+    }
+
+    public MainForm(File file) {
+        this.file = file;
         this.setSize(400, 400);
         this.setLayout(new BorderLayout());
         this.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
+
+        ChangeListener rerun = new ChangeListener() {
+            @Override
+            public void stateChanged(ChangeEvent e) {
+                detectEdges();
+            }
+        };
+        sigma.addChangeListener(rerun);
+        lowThreshold.addChangeListener(rerun);
+        highThreshold.addChangeListener(rerun);
+        JPanel controls = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        controls.add(new JLabel("Sigma"));
+        controls.add(sigma);
+        controls.add(new JLabel("Low"));
+        controls.add(lowThreshold);
+        controls.add(new JLabel("High"));
+        controls.add(highThreshold);
+        controls.add(status);
+
+        this.add(new JScrollPane(background), BorderLayout.CENTER);
+        this.add(controls, BorderLayout.SOUTH);
         this.setVisible(true);
+        detectEdges();
+    }
+
+    /**
+     * Starts detecting edges with the current parameters, cancelling the run before it if it's still going.
+     * Must be called on the event dispatch thread.
+     */
+    private void detectEdges() {
+        final int run = generation.incrementAndGet();
+        if (running != null) {
+            running.cancel(true);
+        }
+        final float s = ((Number) sigma.getValue()).floatValue();
+        final int low = lowThreshold.getValue();
+        final int high = Math.max(low, highThreshold.getValue());
+        status.setText("Detecting...");
+        running = worker.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    detectEdges(run, s, low, high);
+                } catch (IOException e) {
+                    // Cancelling a run can interrupt the decoder, which isn't worth reporting
+                    if (!isStale(run)) {
+                        e.printStackTrace();
+                        showStatus(run, "Couldn't read " + file + ": " + e.getMessage());
+                    }
+                } catch (RuntimeException e) {
+                    // Nobody looks at the Future, so anything not caught here would vanish without a trace
+                    e.printStackTrace();
+                    showStatus(run, "Detection failed: " + e);
+                } catch (Error e) {
+                    // Running out of memory on a huge image shouldn't leave the status saying it's still going
+                    e.printStackTrace();
+                    showStatus(run, "Detection failed: " + e);
+                }
+            }
+        });
+    }
 
-        Image img = null;
-        try {
-            img = new Image(ImageIO.read(new File("test.png")));
-        } catch (IOException e) {
-            e.printStackTrace();
+    private void detectEdges(final int run, float s, int low, int high) throws IOException {
+        long start = System.nanoTime();
+        if (source == null) {
+            BufferedImage img = ImageIO.read(file);
+            if (img == null) {
+                throw new IOException("No image reader understands it");
+            }
+            source = PlanarImage.fromBufferedImage(img);
         }
-        img = Image.detectEdgesCanny(img, 1.4f, 25, 70);
-        //img = Image.detectEdgesSobel(img);
-        background = new ImagePanel(img);
-        this.add(background);
-        this.setSize(background.getImageWidth(), background.getImageHeight());
+        final int width = source.getWidth();
+        final int height = source.getHeight();
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                if (run != generation.get()) {
+                    return;
+                }
+                boolean resized = width != background.getImageWidth() || height != background.getImageHeight();
+                background.reset(width, height);
+                if (resized) {
+                    pack();
+                }
+            }
+        });
 
-        background.repaint();
+        BandPublisher publisher = new BandPublisher(run, width, height);
+        StreamingHysteresis hysteresis = new StreamingHysteresis(width, height, low, high, HYSTERESIS_CONTEXT,
+                publisher);
+        CannyDetector detector = new CannyDetector(s, low, high);
+        detector.begin(width, height);
+        for (int y = 0; y < height; y++) {
+            if (isStale(run)) {
+                return;
+            }
+            detector.pushRow(source, y, hysteresis);
+        }
+        showStatus(run, (System.nanoTime() - start) / 1000000 + "ms");
+    }
+
+    private boolean isStale(int run) {
+        return run != generation.get() || Thread.currentThread().isInterrupted();
     }
 
+    private void showStatus(final int run, final String text) {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                if (run == generation.get()) {
+                    status.setText(text);
+                }
+            }
+        });
+    }
+
+    /**
+     * Packs linked edge rows as gray pixels and sends the panel a band at a time.
+     */
+    private class BandPublisher implements RowSink {
+        private final int run;
+        private final int width;
+        private final int height;
+        private int[] band;
+        private int bandStart;
 
+        BandPublisher(int run, int width, int height) {
+            this.run = run;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public void acceptRow(int y, byte[] row) {
+            if (band == null) {
+                band = new int[width * Math.min(BAND_HEIGHT, height - y)];
+                bandStart = y;
+            }
+            int o = (y - bandStart) * width;
+            for (int x = 0; x < width; x++) {
+                band[o + x] = 0xff000000 | (row[x] & 0xff) * 0x010101;
+            }
+            if (o + width == band.length) {
+                publish(bandStart, band.length / width, band);
+                band = null;
+            }
+        }
+
+        private void publish(final int y, final int rows, final int[] pixels) {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    if (run == generation.get()) {
+                        background.setRows(y, rows, pixels);
+                    }
+                }
+            });
+        }
+    }
 }
@@ -0,0 +1,291 @@
+package ImageProcessing;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * This software falls under the MIT license, as follows:
+ * Copyright (C) 2012
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * <p/>
+ * An image kept in a raw planar file and memory mapped, so its pixels live in the page cache rather than on the heap.
+ * Opening one only reads the header, which makes re-opening an earlier result practically free however big it is.
+ * <p/>
+ * The file is a fixed size header followed by each channel's plane in turn, uncompressed, one byte per sample and
+ * rows packed with no padding:
+ * <pre>
+ * offset  0: magic "IPRW"
+ * offset  4: format version (1)
+ * offset  8: width
+ * offset 12: height
+ * offset 16: channels
+ * offset 64: channel 0, then channel 1, ...
+ * </pre>
+ * All header fields are big endian ints. Each plane is mapped on its own, so a plane can be up to 2GB.
+ */
+public class MappedImage implements Closeable, RowSink, StripProcessor.StripSource {
+    public static final String EXTENSION = ".raw";
+
+    private static final int MAGIC = 0x49505257;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final int width;
+    private final int height;
+    private final MappedByteBuffer[] planes;
+
+    private MappedImage(File file, RandomAccessFile randomAccessFile, int width, int height, int channels,
+                        FileChannel.MapMode mode) throws IOException {
+        this.file = file;
+        this.randomAccessFile = randomAccessFile;
+        this.width = width;
+        this.height = height;
+        this.planes = new MappedByteBuffer[channels];
+        long planeSize = (long) width * height;
+        for (int c = 0; c < channels; c++) {
+            planes[c] = randomAccessFile.getChannel().map(mode, HEADER_SIZE + c * planeSize, planeSize);
+        }
+    }
+
+    /**
+     * Creates, or truncates, a file big enough for the image and maps it. The pixels start out black.
+     */
+    public static MappedImage create(File file, int width, int height, int channels) throws IOException {
+        long planeSize = (long) width * height;
+        if (planeSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("A " + width + "x" + height + " plane is too big to map");
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            raf.setLength(HEADER_SIZE + channels * planeSize);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(channels);
+            header.rewind();
+            raf.getChannel().write(header, 0);
+            return new MappedImage(file, raf, width, height, channels, FileChannel.MapMode.READ_WRITE);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        } catch (RuntimeException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    public static MappedImage open(File file, boolean writable) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw" : "r");
+        try {
+            int[] size = readHeader(file, raf);
+            return new MappedImage(file, raf, size[0], size[1], size[2],
+                    writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        } catch (RuntimeException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads a raw file straight into the planes of a new image, for callers that want it on the heap anyway and would
+     * only copy it out of a mapping.
+     */
+    public static PlanarImage read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            int[] size = readHeader(file, raf);
+            PlanarImage img = new PlanarImage(size[0], size[1], size[2]);
+            raf.seek(HEADER_SIZE);
+            for (int c = 0; c < size[2]; c++) {
+                raf.readFully(img.getPlane(c));
+            }
+            return img;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Writes the image to a raw file through a plain stream, so unlike {@link #save} nothing is left mapped and the file
+     * can be renamed or deleted as soon as this returns.
+     */
+    public static void write(PlanarImage img, File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(img.getWidth());
+            out.writeInt(img.getHeight());
+            out.writeInt(img.getChannels());
+            out.write(new byte[HEADER_SIZE - 5 * 4]);
+            for (int c = 0; c < img.getChannels(); c++) {
+                for (int y = 0; y < img.getHeight(); y++) {
+                    out.write(img.getPlane(c), y * img.getStride(), img.getWidth());
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Checks the header and that the file is long enough for the pixels it promises.
+     *
+     * @return The width, height and channel count
+     */
+    private static int[] readHeader(File file, RandomAccessFile raf) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+        while (header.hasRemaining()) {
+            if (raf.getChannel().read(header, header.position()) < 0) {
+                throw new IOException(file + " is too short to be a raw image");
+            }
+        }
+        header.rewind();
+        if (header.getInt() != MAGIC) {
+            throw new IOException(file + " isn't a raw image");
+        }
+        int version = header.getInt();
+        if (version != VERSION) {
+            throw new IOException(file + " is version " + version + ", only version " + VERSION + " is supported");
+        }
+        int width = header.getInt();
+        int height = header.getInt();
+        int channels = header.getInt();
+        if (raf.length() < HEADER_SIZE + (long) channels * width * height) {
+            throw new IOException(file + " is truncated");
+        }
+        return new int[]{width, height, channels};
+    }
+
+    /**
+     * Writes a copy of the image to a new raw file and returns it mapped.
+     */
+    public static MappedImage save(PlanarImage img, File file) throws IOException {
+        MappedImage mapped = create(file, img.getWidth(), img.getHeight(), img.getChannels());
+        for (int c = 0; c < img.getChannels(); c++) {
+            for (int y = 0; y < img.getHeight(); y++) {
+                mapped.writeRow(c, y, img.getPlane(c), y * img.getStride());
+            }
+        }
+        return mapped;
+    }
+
+    /**
+     * Decodes an image file into a new raw file a strip at a time, so later passes can skip decoding altogether.
+     */
+    public static MappedImage importImage(File image, File file, int stripRows) throws IOException {
+        StripProcessor.ReaderSource source = new StripProcessor.ReaderSource(image);
+        try {
+            MappedImage mapped = create(file, source.getWidth(), source.getHeight(), 3);
+            for (int y = 0; y < source.getHeight(); y += stripRows) {
+                PlanarImage strip = source.readStrip(y, Math.min(stripRows, source.getHeight() - y));
+                for (int c = 0; c < strip.getChannels(); c++) {
+                    for (int row = 0; row < strip.getHeight(); row++) {
+                        mapped.writeRow(c, y + row, strip.getPlane(c), row * strip.getStride());
+                    }
+                }
+            }
+            return mapped;
+        } finally {
+            source.close();
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getChannels() {
+        return planes.length;
+    }
+
+    /**
+     * The mapped plane for a channel, with rows width bytes apart. Each call returns a new view, so its position can
+     * be changed freely.
+     */
+    public ByteBuffer getPlane(int channel) {
+        return planes[channel].duplicate();
+    }
+
+    /**
+     * Copies rows [y, y + rows) of every channel onto the heap.
+     */
+    public PlanarImage readStrip(int y, int rows) {
+        PlanarImage strip = new PlanarImage(width, rows, planes.length);
+        for (int c = 0; c < planes.length; c++) {
+            ByteBuffer plane = getPlane(c);
+            plane.position(y * width);
+            plane.get(strip.getPlane(c), 0, rows * width);
+        }
+        return strip;
+    }
+
+    public PlanarImage toPlanarImage() {
+        return readStrip(0, height);
+    }
+
+    public void writeRow(int channel, int y, byte[] row, int offset) {
+        ByteBuffer plane = getPlane(channel);
+        plane.position(y * width);
+        plane.put(row, offset, width);
+    }
+
+    /**
+     * Writes rows into the first channel, so streaming operators can write their results straight into the file.
+     */
+    @Override
+    public void acceptRow(int y, byte[] row) {
+        writeRow(0, y, row, 0);
+    }
+
+    /**
+     * Flushes any changes out to the file.
+     */
+    public void force() {
+        for (MappedByteBuffer plane : planes) {
+            plane.force();
+        }
+    }
+
+    /**
+     * Closes the file. The mapping itself is released once the buffers are garbage collected, so don't use the image,
+     * or any plane handed out by it, after closing it.
+     */
+    @Override
+    public void close() throws IOException {
+        randomAccessFile.close();
+    }
+}
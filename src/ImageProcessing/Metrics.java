@@ -0,0 +1,154 @@
+package ImageProcessing;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * This software falls under the MIT license, as follows:
+ * Copyright (C) 2012
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * <p/>
+ * Where the operators in {@link Image} report how long each of their stages took, how many pixels it produced and
+ * how much it allocated. Nothing is measured until a {@link MetricsListener} is added, and until then an operator
+ * pays one volatile read to find that out. The JfrMetricsListener in the jfr module turns the measurements into
+ * Flight Recorder events.
+ * <p/>
+ * Allocations are counted for the calling thread only, so work an operator hands to a pool doesn't show up in them.
+ */
+public final class Metrics {
+    private static final Object LOCK = new Object();
+    private static volatile MetricsListener[] listeners = new MetricsListener[0];
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean ALLOCATIONS_SUPPORTED = supportsAllocations();
+
+    private Metrics() {
+    }
+
+    public static void addListener(MetricsListener listener) {
+        synchronized (LOCK) {
+            MetricsListener[] grown = new MetricsListener[listeners.length + 1];
+            System.arraycopy(listeners, 0, grown, 0, listeners.length);
+            grown[listeners.length] = listener;
+            listeners = grown;
+        }
+    }
+
+    public static void removeListener(MetricsListener listener) {
+        synchronized (LOCK) {
+            for (int i = 0; i < listeners.length; i++) {
+                if (listeners[i] == listener) {
+                    MetricsListener[] shrunk = new MetricsListener[listeners.length - 1];
+                    System.arraycopy(listeners, 0, shrunk, 0, i);
+                    System.arraycopy(listeners, i + 1, shrunk, i, shrunk.length - i);
+                    listeners = shrunk;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts timing one run of an operator. Returns null while there are no listeners, and every other method here
+     * does nothing when handed null, so callers never need to check.
+     */
+    static Timer start(String operator) {
+        MetricsListener[] current = listeners;
+        return current.length == 0 ? null : new Timer(operator, current);
+    }
+
+    /**
+     * Reports the stage that ran since the timer started or since the last stage, whichever was later.
+     */
+    static void stage(Timer timer, String stage, PlanarImage produced) {
+        if (timer != null) {
+            timer.stage(stage, (long) produced.getWidth() * produced.getHeight());
+        }
+    }
+
+    static void hysteresis(Timer timer, Hysteresis hysteresis) {
+        if (timer != null) {
+            for (MetricsListener listener : timer.listeners) {
+                listener.hysteresisCompleted(timer.operator, hysteresis.getStrongPixelCount(),
+                        hysteresis.getLinkedPixelCount());
+            }
+        }
+    }
+
+    /**
+     * Reports the whole run, from starting the timer until now.
+     */
+    static void finish(Timer timer, PlanarImage produced) {
+        if (timer != null) {
+            timer.finish((long) produced.getWidth() * produced.getHeight());
+        }
+    }
+
+    private static long allocatedBytes() {
+        return ALLOCATIONS_SUPPORTED
+                ? ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId())
+                : -1;
+    }
+
+    private static boolean supportsAllocations() {
+        try {
+            return THREADS instanceof com.sun.management.ThreadMXBean
+                    && ((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemorySupported()
+                    && ((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemoryEnabled();
+        } catch (LinkageError e) {
+            // Not a HotSpot JVM
+            return false;
+        }
+    }
+
+    /**
+     * One run of an operator. Only ever used by the thread that started it.
+     */
+    static final class Timer {
+        private final String operator;
+        private final MetricsListener[] listeners;
+        private final long startNanos;
+        private final long startBytes;
+        private long stageNanos;
+        private long stageBytes;
+
+        private Timer(String operator, MetricsListener[] listeners) {
+            this.operator = operator;
+            this.listeners = listeners;
+            this.startBytes = allocatedBytes();
+            this.startNanos = System.nanoTime();
+            this.stageNanos = startNanos;
+            this.stageBytes = startBytes;
+        }
+
+        private void stage(String stage, long pixels) {
+            long nanos = System.nanoTime();
+            long bytes = allocatedBytes();
+            for (MetricsListener listener : listeners) {
+                listener.stageCompleted(operator, stage, nanos - stageNanos, pixels, bytes < 0 ? -1 : bytes - stageBytes);
+            }
+            // Listeners' own time and allocations aren't charged to the next stage
+            stageBytes = allocatedBytes();
+            stageNanos = System.nanoTime();
+        }
+
+        private void finish(long pixels) {
+            long nanos = System.nanoTime();
+            long bytes = allocatedBytes();
+            for (MetricsListener listener : listeners) {
+                listener.operatorCompleted(operator, nanos - startNanos, pixels, bytes < 0 ? -1 : bytes - startBytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package ImageProcessing;
+
+/**
+ * This software falls under the MIT license, as follows:
+ * Copyright (C) 2012
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * <p/>
+ * Receives the measurements the operators in {@link Image} take while a listener is registered with {@link Metrics}.
+ * Listeners are called on the thread running the operator, in the middle of it, so they should be quick and must be
+ * thread safe.
+ */
+public interface MetricsListener {
+    /**
+     * One step of an operator has finished.
+     *
+     * @param operator       The operator's name, such as detectEdgesCanny
+     * @param stage          The step's name, such as smoothing or hysteresis
+     * @param nanos          Wall time the step took
+     * @param pixels         Pixels the step produced
+     * @param allocatedBytes Bytes the calling thread allocated during the step, or -1 if the JVM can't tell
+     */
+    void stageCompleted(String operator, String stage, long nanos, long pixels, long allocatedBytes);
+
+    /**
+     * A hysteresis step has finished. Every edge pixel is taken off the stack exactly once, so strong plus linked
+     * pixels is also the number of times the edge following loop ran.
+     */
+    void hysteresisCompleted(String operator, int strongPixels, int linkedPixels);
+
+    /**
+     * The whole operator has finished, after all of its stages.
+     */
+    void operatorCompleted(String operator, long nanos, long pixels, long allocatedBytes);
+}
@@ -0,0 +1,453 @@
+package ImageProcessing;
+
+import java.util.Arrays;
+
+/**
+ * This software falls under the MIT license, as follows:
+ * Copyright (C) 2012
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * <p/>
+ * Erosion, dilation, opening and closing with rectangles and with lines at 0, 45, 90 and 135 degrees, on grayscale
+ * images and on {@link BinaryImage}s.
+ * <p/>
+ * Every pass uses van Herk/Gil-Werman. A line of pixels is cut into blocks as long as the element, and running
+ * minima are taken forwards and backwards within each block. Any window then straddles at most two blocks, so its
+ * minimum is one comparison between the two. That's about three comparisons per pixel whatever the element's size.
+ * A rectangle is a horizontal line followed by a vertical one. Vertical and diagonal lines run down the image a whole
+ * row at a time, so they read memory in order.
+ * <p/>
+ * Pixels off the edge of the image never change the result: they count as white for erosion and as black for
+ * dilation. Elements are centred on the pixel, and for even sizes dilation uses the element reflected, so opening
+ * and closing stay idempotent. Dilation is worked out as the erosion of the inverted image, which is why the passes
+ * below only ever take minima.
+ * <p/>
+ * Grayscale operators read the intensity plane and write a single channel image. On binary images the same passes
+ * run over 64 pixels at a time, with AND in place of the minimum.
+ */
+public class Morphology {
+    public static final int HORIZONTAL = 0;
+    public static final int DIAGONAL_UP = 45;
+    public static final int VERTICAL = 90;
+    public static final int DIAGONAL_DOWN = 135;
+
+    public static PlanarImage erode(PlanarImage src, int width, int height) {
+        return rectangle(src, width, height, false);
+    }
+
+    public static PlanarImage dilate(PlanarImage src, int width, int height) {
+        return rectangle(src, width, height, true);
+    }
+
+    public static PlanarImage open(PlanarImage src, int width, int height) {
+        return dilate(erode(src, width, height), width, height);
+    }
+
+    public static PlanarImage close(PlanarImage src, int width, int height) {
+        return erode(dilate(src, width, height), width, height);
+    }
+
+    /**
+     * @param angle One of {@link #HORIZONTAL}, {@link #DIAGONAL_UP}, {@link #VERTICAL} or {@link #DIAGONAL_DOWN}
+     */
+    public static PlanarImage erodeLine(PlanarImage src, int length, int angle) {
+        return line(src, length, angle, false);
+    }
+
+    public static PlanarImage dilateLine(PlanarImage src, int length, int angle) {
+        return line(src, length, angle, true);
+    }
+
+    public static PlanarImage openLine(PlanarImage src, int length, int angle) {
+        return dilateLine(erodeLine(src, length, angle), length, angle);
+    }
+
+    public static PlanarImage closeLine(PlanarImage src, int length, int angle) {
+        return erodeLine(dilateLine(src, length, angle), length, angle);
+    }
+
+    public static BinaryImage erode(BinaryImage src, int width, int height) {
+        return rectangle(src, width, height, false);
+    }
+
+    public static BinaryImage dilate(BinaryImage src, int width, int height) {
+        return rectangle(src, width, height, true);
+    }
+
+    public static BinaryImage open(BinaryImage src, int width, int height) {
+        return dilate(erode(src, width, height), width, height);
+    }
+
+    public static BinaryImage close(BinaryImage src, int width, int height) {
+        return erode(dilate(src, width, height), width, height);
+    }
+
+    public static BinaryImage erodeLine(BinaryImage src, int length, int angle) {
+        return line(src, length, angle, false);
+    }
+
+    public static BinaryImage dilateLine(BinaryImage src, int length, int angle) {
+        return line(src, length, angle, true);
+    }
+
+    public static BinaryImage openLine(BinaryImage src, int length, int angle) {
+        return dilateLine(erodeLine(src, length, angle), length, angle);
+    }
+
+    public static BinaryImage closeLine(BinaryImage src, int length, int angle) {
+        return erodeLine(dilateLine(src, length, angle), length, angle);
+    }
+
+    private static PlanarImage rectangle(PlanarImage src, int width, int height, boolean dilate) {
+        checkSize(width);
+        checkSize(height);
+        int flip = dilate ? 0xff : 0;
+        PlanarImage horizontal = new PlanarImage(src.getWidth(), src.getHeight(), 1);
+        // The intermediate stays inverted for dilation, so only the first read and the last write flip
+        erodeRows(src.getIntensityPlane(), src.getStride(), horizontal.getPlane(0), horizontal.getStride(),
+                src.getWidth(), src.getHeight(), width, before(width, dilate), flip, 0);
+        PlanarImage output = new PlanarImage(src.getWidth(), src.getHeight(), 1);
+        erodeLines(horizontal.getPlane(0), horizontal.getStride(), output.getPlane(0), output.getStride(),
+                src.getWidth(), src.getHeight(), height, before(height, dilate), 0, 0, flip);
+        return output;
+    }
+
+    private static PlanarImage line(PlanarImage src, int length, int angle, boolean dilate) {
+        checkSize(length);
+        int flip = dilate ? 0xff : 0;
+        PlanarImage output = new PlanarImage(src.getWidth(), src.getHeight(), 1);
+        if (angle == HORIZONTAL) {
+            erodeRows(src.getIntensityPlane(), src.getStride(), output.getPlane(0), output.getStride(),
+                    src.getWidth(), src.getHeight(), length, before(length, dilate), flip, flip);
+        } else {
+            erodeLines(src.getIntensityPlane(), src.getStride(), output.getPlane(0), output.getStride(),
+                    src.getWidth(), src.getHeight(), length, before(length, dilate), columnStep(angle), flip, flip);
+        }
+        return output;
+    }
+
+    /**
+     * Erodes each row with a horizontal line. The window of pixel x is [x - before, x - before + length).
+     */
+    private static void erodeRows(byte[] in, int inStride, byte[] out, int outStride, int width, int height,
+                                  int length, int before, int inFlip, int outFlip) {
+        int padded = width + length - 1;
+        int[] values = new int[padded];
+        int[] forward = new int[padded];
+        int[] backward = new int[padded];
+        Arrays.fill(values, 0, before, 0xff);
+        Arrays.fill(values, before + width, padded, 0xff);
+        for (int y = 0; y < height; y++) {
+            int i = y * inStride;
+            for (int x = 0; x < width; x++) {
+                values[before + x] = (in[i + x] ^ inFlip) & 0xff;
+            }
+            for (int start = 0; start < padded; start += length) {
+                int end = Math.min(start + length, padded);
+                forward[start] = values[start];
+                for (int x = start + 1; x < end; x++) {
+                    forward[x] = Math.min(forward[x - 1], values[x]);
+                }
+                backward[end - 1] = values[end - 1];
+                for (int x = end - 2; x >= start; x--) {
+                    backward[x] = Math.min(backward[x + 1], values[x]);
+                }
+            }
+            int o = y * outStride;
+            for (int x = 0; x < width; x++) {
+                out[o + x] = (byte) (Math.min(backward[x], forward[x + length - 1]) ^ outFlip);
+            }
+        }
+    }
+
+    /**
+     * Erodes with a line running down the image, which moves step columns for every row it goes down: 0 for vertical,
+     * -1 and 1 for the diagonals. The window of pixel (x, y) is the length pixels of its line starting before rows
+     * above it. Running minima are kept for whole rows at a time, following each line from one row to the next.
+     * <p/>
+     * A diagonal can run off the side of the image and back within a window, so its rows are padded by length - 1
+     * columns on both sides to keep every line being followed inside the buffers.
+     */
+    private static void erodeLines(byte[] in, int inStride, byte[] out, int outStride, int width, int height,
+                                   int length, int before, int step, int inFlip, int outFlip) {
+        int pad = step == 0 ? 0 : length - 1;
+        int rowWidth = width + 2 * pad;
+        int rows = height + length - 1;
+        byte[] forward = new byte[rows * rowWidth];
+        byte[] backward = new byte[rows * rowWidth];
+        byte[] values = new byte[rowWidth];
+        // The neighbour a line comes from in the row above, and goes to in the row below
+        int fromStart = Math.max(0, step);
+        int fromEnd = rowWidth + Math.min(0, step);
+        int toStart = Math.max(0, -step);
+        int toEnd = rowWidth - Math.max(0, step);
+
+        for (int r = 0; r < rows; r++) {
+            int row = r * rowWidth;
+            loadRow(in, inStride, width, height, r - before, pad, inFlip, values);
+            if (r % length == 0) {
+                System.arraycopy(values, 0, forward, row, rowWidth);
+            } else {
+                int above = row - rowWidth - step;
+                // Lines entering from off the side have nothing above them yet
+                System.arraycopy(values, 0, forward, row, fromStart);
+                for (int x = fromStart; x < fromEnd; x++) {
+                    forward[row + x] = (byte) Math.min(forward[above + x] & 0xff, values[x] & 0xff);
+                }
+                System.arraycopy(values, fromEnd, forward, row + fromEnd, rowWidth - fromEnd);
+            }
+        }
+        for (int r = rows - 1; r >= 0; r--) {
+            int row = r * rowWidth;
+            loadRow(in, inStride, width, height, r - before, pad, inFlip, values);
+            if (r % length == length - 1 || r == rows - 1) {
+                System.arraycopy(values, 0, backward, row, rowWidth);
+            } else {
+                int below = row + rowWidth + step;
+                System.arraycopy(values, 0, backward, row, toStart);
+                for (int x = toStart; x < toEnd; x++) {
+                    backward[row + x] = (byte) Math.min(backward[below + x] & 0xff, values[x] & 0xff);
+                }
+                System.arraycopy(values, toEnd, backward, row + toEnd, rowWidth - toEnd);
+            }
+        }
+
+        for (int y = 0; y < height; y++) {
+            // The window of (x, y) starts on padded row y, before rows up its line, and ends length - 1 rows later
+            int first = y * rowWidth + pad - step * before;
+            int last = (y + length - 1) * rowWidth + pad + step * (length - 1 - before);
+            int o = y * outStride;
+            for (int x = 0; x < width; x++) {
+                out[o + x] = (byte) (Math.min(backward[first + x] & 0xff, forward[last + x] & 0xff) ^ outFlip);
+            }
+        }
+    }
+
+    /**
+     * Row y of the input, flipped, placed pad columns in, with white everywhere off the image.
+     */
+    private static void loadRow(byte[] in, int inStride, int width, int height, int y, int pad, int flip,
+                                byte[] values) {
+        if (y < 0 || y >= height) {
+            Arrays.fill(values, (byte) 0xff);
+            return;
+        }
+        Arrays.fill(values, 0, pad, (byte) 0xff);
+        Arrays.fill(values, pad + width, values.length, (byte) 0xff);
+        int i = y * inStride;
+        for (int x = 0; x < width; x++) {
+            values[pad + x] = (byte) (in[i + x] ^ flip);
+        }
+    }
+
+    private static BinaryImage rectangle(BinaryImage src, int width, int height, boolean dilate) {
+        checkSize(width);
+        checkSize(height);
+        BinaryImage horizontal = new BinaryImage(src.getWidth(), src.getHeight());
+        erodeRows(src, horizontal, width, before(width, dilate), dilate, false);
+        BinaryImage output = new BinaryImage(src.getWidth(), src.getHeight());
+        erodeLines(horizontal, output, height, before(height, dilate), 0, false, dilate);
+        return output;
+    }
+
+    private static BinaryImage line(BinaryImage src, int length, int angle, boolean dilate) {
+        checkSize(length);
+        BinaryImage output = new BinaryImage(src.getWidth(), src.getHeight());
+        if (angle == HORIZONTAL) {
+            erodeRows(src, output, length, before(length, dilate), dilate, dilate);
+        } else {
+            erodeLines(src, output, length, before(length, dilate), columnStep(angle), dilate, dilate);
+        }
+        return output;
+    }
+
+    /**
+     * Erodes each packed row with a horizontal line. Within a word the bits aren't independent the way rows are, so
+     * rather than van Herk/Gil-Werman this ANDs each row with itself shifted by doubling distances, which covers a
+     * window of length pixels in log2(length) shifts of the whole row.
+     */
+    private static void erodeRows(BinaryImage src, BinaryImage dest, int length, int before, boolean inFlip,
+                                  boolean outFlip) {
+        int width = src.getWidth();
+        int words = src.getWordsPerRow();
+        long[] in = src.getBits();
+        long[] out = dest.getBits();
+        // Room for every pixel a window of the last pixel reaches, so no window runs off the end of the buffer
+        int paddedWords = BinaryImage.wordsFor(width + length);
+        long[] row = new long[words];
+        long[] run = new long[paddedWords];
+        long[] shifted = new long[paddedWords];
+        long lastMask = BinaryImage.lastWordMask(width);
+        for (int y = 0; y < src.getHeight(); y++) {
+            loadWords(in, y * words, words, lastMask, inFlip, row, 0);
+            // Start each window at its pixel, then run holds the AND of span pixels from there
+            shift(row, 0, words, -before, run, 0, paddedWords);
+            int span = 1;
+            while (span * 2 <= length) {
+                and(run, span, shifted, paddedWords);
+                span *= 2;
+            }
+            if (span < length) {
+                and(run, length - span, shifted, paddedWords);
+            }
+            storeWords(run, 0, words, lastMask, outFlip, out, y * words);
+        }
+    }
+
+    /**
+     * ANDs each pixel of run with the one distance to its right.
+     */
+    private static void and(long[] run, int distance, long[] shifted, int words) {
+        shift(run, 0, words, distance, shifted, 0, words);
+        for (int w = 0; w < words; w++) {
+            run[w] &= shifted[w];
+        }
+    }
+
+    /**
+     * The packed version of {@link #erodeLines(byte[], int, byte[], int, int, int, int, int, int, int, int)}, with
+     * lines followed from row to row by shifting a whole row by one bit.
+     */
+    private static void erodeLines(BinaryImage src, BinaryImage dest, int length, int before, int step,
+                                   boolean inFlip, boolean outFlip) {
+        int width = src.getWidth();
+        int height = src.getHeight();
+        int words = src.getWordsPerRow();
+        long lastMask = BinaryImage.lastWordMask(width);
+        int pad = step == 0 ? 0 : length - 1;
+        int paddedWords = BinaryImage.wordsFor(width + 2 * pad);
+        int rows = height + length - 1;
+        long[] forward = new long[rows * paddedWords];
+        long[] backward = new long[rows * paddedWords];
+        long[] values = new long[paddedWords];
+        long[] row = new long[words];
+        long[] shifted = new long[paddedWords];
+
+        for (int r = 0; r < rows; r++) {
+            loadPaddedRow(src, r - before, pad, inFlip, row, values);
+            int o = r * paddedWords;
+            if (r % length == 0) {
+                System.arraycopy(values, 0, forward, o, paddedWords);
+            } else {
+                shift(forward, o - paddedWords, paddedWords, -step, shifted, 0, paddedWords);
+                for (int w = 0; w < paddedWords; w++) {
+                    forward[o + w] = shifted[w] & values[w];
+                }
+            }
+        }
+        for (int r = rows - 1; r >= 0; r--) {
+            loadPaddedRow(src, r - before, pad, inFlip, row, values);
+            int o = r * paddedWords;
+            if (r % length == length - 1 || r == rows - 1) {
+                System.arraycopy(values, 0, backward, o, paddedWords);
+            } else {
+                shift(backward, o + paddedWords, paddedWords, step, shifted, 0, paddedWords);
+                for (int w = 0; w < paddedWords; w++) {
+                    backward[o + w] = shifted[w] & values[w];
+                }
+            }
+        }
+
+        long[] first = new long[words];
+        long[] last = new long[words];
+        long[] out = dest.getBits();
+        for (int y = 0; y < height; y++) {
+            shift(backward, y * paddedWords, paddedWords, pad - step * before, first, 0, words);
+            shift(forward, (y + length - 1) * paddedWords, paddedWords, pad + step * (length - 1 - before), last, 0,
+                    words);
+            for (int w = 0; w < words; w++) {
+                first[w] &= last[w];
+            }
+            storeWords(first, 0, words, lastMask, outFlip, out, y * words);
+        }
+    }
+
+    /**
+     * Row y of src, flipped, placed pad bits in, with every bit off the image set.
+     */
+    private static void loadPaddedRow(BinaryImage src, int y, int pad, boolean flip, long[] row, long[] values) {
+        if (y < 0 || y >= src.getHeight()) {
+            Arrays.fill(values, -1L);
+            return;
+        }
+        int words = src.getWordsPerRow();
+        loadWords(src.getBits(), y * words, words, BinaryImage.lastWordMask(src.getWidth()), flip, row, 0);
+        shift(row, 0, words, -pad, values, 0, values.length);
+    }
+
+    /**
+     * Copies a row, flipping it if asked, and sets the bits past its width so they never clear anything.
+     */
+    private static void loadWords(long[] in, int from, int words, long lastMask, boolean flip, long[] out, int to) {
+        long invert = flip ? -1L : 0;
+        for (int w = 0; w < words; w++) {
+            out[to + w] = in[from + w] ^ invert;
+        }
+        out[to + words - 1] |= ~lastMask;
+    }
+
+    private static void storeWords(long[] in, int from, int words, long lastMask, boolean flip, long[] out, int to) {
+        long invert = flip ? -1L : 0;
+        for (int w = 0; w < words; w++) {
+            out[to + w] = in[from + w] ^ invert;
+        }
+        out[to + words - 1] &= lastMask;
+    }
+
+    /**
+     * Pixel x of dest becomes pixel x + distance of src. Pixels from past either end of src are set.
+     */
+    private static void shift(long[] src, int from, int srcWords, int distance, long[] dest, int to, int destWords) {
+        int wordShift = distance >> 6;
+        int bitShift = distance & 63;
+        for (int w = 0; w < destWords; w++) {
+            int s = w + wordShift;
+            long low = s >= 0 && s < srcWords ? src[from + s] : -1L;
+            if (bitShift == 0) {
+                dest[to + w] = low;
+            } else {
+                long high = s + 1 >= 0 && s + 1 < srcWords ? src[from + s + 1] : -1L;
+                dest[to + w] = low >>> bitShift | high << (64 - bitShift);
+            }
+        }
+    }
+
+    /**
+     * How many pixels of the element come before the centre. Dilation uses the element reflected, which only differs
+     * for even sizes.
+     */
+    private static int before(int length, boolean dilate) {
+        return dilate ? length / 2 : (length - 1) / 2;
+    }
+
+    private static int columnStep(int angle) {
+        switch (angle) {
+            case DIAGONAL_UP:
+                // Going down a row moves the line one column left
+                return -1;
+            case VERTICAL:
+                return 0;
+            case DIAGONAL_DOWN:
+                return 1;
+            default:
+                throw new IllegalArgumentException("Lines can only be at 0, 45, 90 or 135 degrees, not " + angle);
+        }
+    }
+
+    private static void checkSize(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Structuring elements must be at least 1 pixel, not " + size);
+        }
+    }
+}
@@ -0,0 +1,1032 @@
+package ImageProcessing;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * This software falls under the MIT license, as follows:
+ * Copyright (C) 2012
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * <p/>
+ * An image stored as one contiguous byte plane per channel, addressed as plane[y * stride + x].
+ * Colour images hold their red, green and blue planes in that order; grayscale images hold a single plane.
+ * The operators here mirror the ones on {@link Image}, but work on plain arrays instead of going through
+ * getRGB/setRGB for every pixel. Conversion to and from BufferedImage only happens at the edges.
+ */
+public class PlanarImage {
+    public static final int RED = 0;
+    public static final int GREEN = 1;
+    public static final int BLUE = 2;
+    public static final int ALPHA = 3;
+
+    // Which planes a convolution reads, with output plane i written from input plane channels[i]
+    private static final int[] GRAY_INTENSITY = {0};
+    private static final int[] COLOUR_INTENSITY = {BLUE};
+    private static final int[][] ALL_CHANNELS = {{}, {0}, {0, 1}, {0, 1, 2}, {0, 1, 2, 3}};
+
+    // Both gradient images only have 256 values each, so their magnitude and angle are looked up rather than worked
+    // out per pixel. Tables are indexed by gX << 8 | gY.
+    static final byte[] GRADIENT_MAGNITUDES = new byte[1 << 16];
+    static final byte[] IMAGE_ANGLES = new byte[1 << 16];
+
+    static {
+        for (int xVal = 0; xVal < 256; xVal++) {
+            for (int yVal = 0; yVal < 256; yVal++) {
+                long magnitude = Math.round(Math.sqrt(xVal * xVal + yVal * yVal));
+                GRADIENT_MAGNITUDES[xVal << 8 | yVal] = (byte) Math.min(255, magnitude);
+                IMAGE_ANGLES[xVal << 8 | yVal] = (byte) imageAngle(xVal, yVal);
+            }
+        }
+    }
+
+    private final int width;
+    private final int height;
+    private final int stride;
+    private final byte[][] planes;
+
+    public PlanarImage(int width, int height, int channels) {
+        this.width = width;
+        this.height = height;
+        this.stride = width;
+        this.planes = new byte[channels][width * height];
+    }
+
+    public PlanarImage(int width, int height, int stride, byte[][] planes) {
+        if (stride < width) {
+            throw new IllegalArgumentException("Stride " + stride + " is smaller than width " + width);
+        }
+        for (byte[] plane : planes) {
+            if (height > 0 && plane.length < (height - 1) * stride + width) {
+                throw new IllegalArgumentException("Plane is too small for a " + width + "x" + height + " image");
+            }
+        }
+        this.width = width;
+        this.height = height;
+        this.stride = stride;
+        this.planes = planes;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getStride() {
+        return stride;
+    }
+
+    public int getChannels() {
+        return planes.length;
+    }
+
+    public byte[] getPlane(int channel) {
+        return planes[channel];
+    }
+
+    /**
+     * The plane the single channel operators read from. The original operators only looked at the low byte of the
+     * packed pixel, which is the blue channel, so that's what we use for colour images.
+     */
+    public byte[] getIntensityPlane() {
+        return planes.length >= 3 ? planes[BLUE] : planes[0];
+    }
+
+    int[] intensityChannels() {
+        return planes.length >= 3 ? COLOUR_INTENSITY : GRAY_INTENSITY;
+    }
+
+    private int[] allChannels() {
+        if (planes.length < ALL_CHANNELS.length) {
+            return ALL_CHANNELS[planes.length];
+        }
+        int[] channels = new int[planes.length];
+        for (int c = 0; c < channels.length; c++) {
+            channels[c] = c;
+        }
+        return channels;
+    }
+
+    public int getPixel(int channel, int x, int y) {
+        return planes[channel][y * stride + x] & 0xff;
+    }
+
+    public void setPixel(int channel, int x, int y, int value) {
+        planes[channel][y * stride + x] = (byte) value;
+    }
+
+    public PlanarImage copy() {
+        PlanarImage copy = new PlanarImage(width, height, planes.length);
+        copyTo(copy);
+        return copy;
+    }
+
+    /**
+     * Copies every channel into dest, which must be the same size with the same number of channels.
+     */
+    public void copyTo(PlanarImage dest) {
+        checkDestination(dest, width, height, planes.length);
+        for (int c = 0; c < planes.length; c++) {
+            for (int y = 0; y < height; y++) {
+                System.arraycopy(planes[c], y * stride, dest.planes[c], y * dest.stride, width);
+            }
+        }
+    }
+
+    public static PlanarImage fromBufferedImage(BufferedImage img) {
+        return fromBufferedImage(img, false);
+    }
+
+    /**
+     * @param alpha Whether to keep the image's alpha channel as a fourth plane. Images without one always get three.
+     */
+    public static PlanarImage fromBufferedImage(BufferedImage img, boolean alpha) {
+        int channels = alpha && img.getColorModel().hasAlpha() ? 4 : 3;
+        PlanarImage output = new PlanarImage(img.getWidth(), img.getHeight(), channels);
+        fromBufferedImage(img, output);
+        return output;
+    }
+
+    /**
+     * Unpacks the image into the three colour planes of output, which must be the same size as it, and into its
+     * alpha plane too if it has a fourth. INT_RGB, INT_ARGB, 3BYTE_BGR and 4BYTE_ABGR images are read straight out of
+     * their rasters rather than through the colour model.
+     */
+    public static void fromBufferedImage(BufferedImage img, PlanarImage output) {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        checkDestination(output, width, height, 3);
+        byte[] r = output.planes[RED];
+        byte[] g = output.planes[GREEN];
+        byte[] b = output.planes[BLUE];
+        byte[] a = output.planes.length > ALPHA ? output.planes[ALPHA] : null;
+        WritableRaster raster = img.getRaster();
+        int type = img.getType();
+
+        if ((type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB)
+                && raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+                && raster.getDataBuffer() instanceof DataBufferInt) {
+            // Packed 0xAARRGGBB ints, which is exactly what getRGB would hand back, so read them straight out
+            SinglePixelPackedSampleModel sm = (SinglePixelPackedSampleModel) raster.getSampleModel();
+            int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+            int base = raster.getDataBuffer().getOffset();
+            for (int y = 0; y < height; y++) {
+                int in = base + sm.getOffset(-raster.getSampleModelTranslateX(), y - raster.getSampleModelTranslateY());
+                int out = y * output.stride;
+                for (int x = 0; x < width; x++) {
+                    int value = data[in + x];
+                    r[out + x] = (byte) (value >> 16);
+                    g[out + x] = (byte) (value >> 8);
+                    b[out + x] = (byte) value;
+                }
+                if (a != null) {
+                    // INT_RGB leaves the top byte undefined, so it counts as opaque
+                    for (int x = 0; x < width; x++) {
+                        a[out + x] = type == BufferedImage.TYPE_INT_ARGB ? (byte) (data[in + x] >>> 24) : (byte) 0xff;
+                    }
+                }
+            }
+        } else if ((type == BufferedImage.TYPE_3BYTE_BGR || type == BufferedImage.TYPE_4BYTE_ABGR)
+                && raster.getSampleModel() instanceof ComponentSampleModel
+                && raster.getDataBuffer() instanceof DataBufferByte) {
+            // Interleaved bytes, which is what the JPEG decoder hands us
+            ComponentSampleModel sm = (ComponentSampleModel) raster.getSampleModel();
+            byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+            int base = raster.getDataBuffer().getOffset();
+            int[] bandOffsets = sm.getBandOffsets();
+            int pixelStride = sm.getPixelStride();
+            for (int y = 0; y < height; y++) {
+                int in = base + sm.getOffset(-raster.getSampleModelTranslateX(), y - raster.getSampleModelTranslateY())
+                        - bandOffsets[0];
+                int out = y * output.stride;
+                int start = in;
+                for (int x = 0; x < width; x++) {
+                    r[out + x] = data[in + bandOffsets[0]];
+                    g[out + x] = data[in + bandOffsets[1]];
+                    b[out + x] = data[in + bandOffsets[2]];
+                    in += pixelStride;
+                }
+                if (a != null) {
+                    if (bandOffsets.length > ALPHA) {
+                        for (int x = 0, i = start + bandOffsets[ALPHA]; x < width; x++, i += pixelStride) {
+                            a[out + x] = data[i];
+                        }
+                    } else {
+                        Arrays.fill(a, out, out + width, (byte) 0xff);
+                    }
+                }
+            }
+        } else {
+            // Anything else goes through the colour model, but a row at a time rather than a pixel at a time
+            int[] row = new int[width];
+            for (int y = 0; y < height; y++) {
+                img.getRGB(0, y, width, 1, row, 0, width);
+                int out = y * output.stride;
+                for (int x = 0; x < width; x++) {
+                    int value = row[x];
+                    r[out + x] = (byte) (value >> 16);
+                    g[out + x] = (byte) (value >> 8);
+                    b[out + x] = (byte) value;
+                }
+                if (a != null) {
+                    for (int x = 0; x < width; x++) {
+                        a[out + x] = (byte) (row[x] >>> 24);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies this image into a new Image of the given type. TYPE_CUSTOM can't be created from a type alone, so it
+     * gets INT_RGB instead.
+     */
+    public Image toImage(int imageType) {
+        if (imageType == BufferedImage.TYPE_CUSTOM) {
+            imageType = BufferedImage.TYPE_INT_RGB;
+        }
+        Image output = new Image(width, height, imageType);
+        writeTo(output);
+        return output;
+    }
+
+    /**
+     * Writes this image into the top left corner of dest. Single channel images are written as gray, and images without
+     * an alpha plane as opaque pixels.
+     */
+    public void writeTo(BufferedImage dest) {
+        WritableRaster raster = dest.getRaster();
+        int type = dest.getType();
+        if ((type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB)
+                && raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+                && raster.getDataBuffer() instanceof DataBufferInt) {
+            SinglePixelPackedSampleModel sm = (SinglePixelPackedSampleModel) raster.getSampleModel();
+            int[] data = ((DataBufferInt) raster.getDataBuffer()).getData();
+            int base = raster.getDataBuffer().getOffset();
+            for (int y = 0; y < height; y++) {
+                int out = base + sm.getOffset(-raster.getSampleModelTranslateX(), y - raster.getSampleModelTranslateY());
+                packRow(y, data, out);
+            }
+        } else {
+            int[] row = new int[width];
+            for (int y = 0; y < height; y++) {
+                packRow(y, row, 0);
+                dest.setRGB(0, y, width, 1, row, 0, width);
+            }
+        }
+    }
+
+    private void packRow(int y, int[] dest, int offset) {
+        int in = y * stride;
+        if (planes.length > ALPHA) {
+            byte[] r = planes[RED];
+            byte[] g = planes[GREEN];
+            byte[] b = planes[BLUE];
+            byte[] a = planes[ALPHA];
+            for (int x = 0; x < width; x++) {
+                dest[offset + x] = a[in + x] << 24 | (r[in + x] & 0xff) << 16 | (g[in + x] & 0xff) << 8
+                        | (b[in + x] & 0xff);
+            }
+        } else if (planes.length >= 3) {
+            byte[] r = planes[RED];
+            byte[] g = planes[GREEN];
+            byte[] b = planes[BLUE];
+            for (int x = 0; x < width; x++) {
+                dest[offset + x] = 0xff000000 | (r[in + x] & 0xff) << 16 | (g[in + x] & 0xff) << 8 | (b[in + x] & 0xff);
+            }
+        } else {
+            byte[] gray = planes[0];
+            for (int x = 0; x < width; x++) {
+                dest[offset + x] = 0xff000000 | (gray[in + x] & 0xff) * 0x010101;
+            }
+        }
+    }
+
+    public static PlanarImage convertToGrayScale(PlanarImage img) {
+        PlanarImage output = new PlanarImage(img.width, img.height, 1);
+        convertToGrayScale(img, output);
+        return output;
+    }
+
+    public static void convertToGrayScale(PlanarImage img, PlanarImage output) {
+        checkDestination(output, img.width, img.height, 1);
+        byte[] out = output.planes[0];
+        if (img.planes.length < 3) {
+            for (int y = 0; y < img.height; y++) {
+                System.arraycopy(img.planes[0], y * img.stride, out, y * output.stride, img.width);
+            }
+            return;
+        }
+        byte[] r = img.planes[RED];
+        byte[] g = img.planes[GREEN];
+        byte[] b = img.planes[BLUE];
+        for (int y = 0; y < img.height; y++) {
+            int in = y * img.stride;
+            int o = y * output.stride;
+            for (int x = 0; x < img.width; x++) {
+                // Multiplying by 43691 / 2^17 divides by three exactly for sums up to 765, and unlike an integer
+                // division it can be vectorised
+                out[o + x] = (byte) ((((r[in + x] & 0xff) + (g[in + x] & 0xff) + (b[in + x] & 0xff)) * 43691) >>> 17);
+            }
+        }
+    }
+
+    public static PlanarImage addImages(PlanarImage img1, PlanarImage img2) {
+        PlanarImage output = new PlanarImage(img1.width, img1.height, 1);
+        addImages(img1, img2, output);
+        return output;
+    }
+
+    public static void addImages(PlanarImage img1, PlanarImage img2, PlanarImage output) {
+        checkDestination(output, img1.width, img1.height, 1);
+        byte[] a = img1.getIntensityPlane();
+        byte[] b = img2.getIntensityPlane();
+        byte[] out = output.planes[0];
+        for (int y = 0; y < img1.height; y++) {
+            int in1 = y * img1.stride;
+            int in2 = y * img2.stride;
+            int o = y * output.stride;
+            for (int x = 0; x < img1.width; x++) {
+                out[o + x] = (byte) Math.min(255, (a[in1 + x] & 0xff) + (b[in2 + x] & 0xff));
+            }
+        }
+    }
+
+    /**
+     * Adds every channel of img2 to the same channel of img1, saturating at 255, in one pass over the pixels. The
+     * output has as many channels as img1, and img2 must have at least that many.
+     */
+    public static PlanarImage addChannels(PlanarImage img1, PlanarImage img2) {
+        PlanarImage output = new PlanarImage(img1.width, img1.height, img1.planes.length);
+        addChannels(img1, img2, output);
+        return output;
+    }
+
+    public static void addChannels(PlanarImage img1, PlanarImage img2, PlanarImage output) {
+        int channels = img1.planes.length;
+        checkDestination(output, img1.width, img1.height, channels);
+        checkDestination(img2, img1.width, img1.height, channels);
+        for (int y = 0; y < img1.height; y++) {
+            int in1 = y * img1.stride;
+            int in2 = y * img2.stride;
+            int o = y * output.stride;
+            for (int c = 0; c < channels; c++) {
+                byte[] a = img1.planes[c];
+                byte[] b = img2.planes[c];
+                byte[] out = output.planes[c];
+                for (int x = 0; x < img1.width; x++) {
+                    out[o + x] = (byte) Math.min(255, (a[in1 + x] & 0xff) + (b[in2 + x] & 0xff));
+                }
+            }
+        }
+    }
+
+    public static PlanarImage calculateGradientImage(PlanarImage gX, PlanarImage gY) {
+        PlanarImage output = new PlanarImage(gX.width, gX.height, 1);
+        calculateGradientImage(gX, gY, output);
+        return output;
+    }
+
+    public static void calculateGradientImage(PlanarImage gX, PlanarImage gY, PlanarImage output) {
+        checkDestination(output, gX.width, gX.height, 1);
+        byte[] xPlane = gX.getIntensityPlane();
+        byte[] yPlane = gY.getIntensityPlane();
+        byte[] out = output.planes[0];
+        for (int y = 0; y < gX.height; y++) {
+            int inX = y * gX.stride;
+            int inY = y * gY.stride;
+            int o = y * output.stride;
+            for (int x = 0; x < gX.width; x++) {
+                out[o + x] = GRADIENT_MAGNITUDES[(xPlane[inX + x] & 0xff) << 8 | (yPlane[inY + x] & 0xff)];
+            }
+        }
+    }
+
+    public static PlanarImage calculateImageAngles(PlanarImage gX, PlanarImage gY) {
+        PlanarImage output = new PlanarImage(gX.width, gX.height, 1);
+        calculateImageAngles(gX, gY, output);
+        return output;
+    }
+
+    public static void calculateImageAngles(PlanarImage gX, PlanarImage gY, PlanarImage output) {
+        checkDestination(output, gX.width, gX.height, 1);
+        byte[] xPlane = gX.getIntensityPlane();
+        byte[] yPlane = gY.getIntensityPlane();
+        byte[] out = output.planes[0];
+        for (int y = 0; y < gX.height; y++) {
+            int inX = y * gX.stride;
+            int inY = y * gY.stride;
+            int o = y * output.stride;
+            for (int x = 0; x < gX.width; x++) {
+                out[o + x] = IMAGE_ANGLES[(xPlane[inX + x] & 0xff) << 8 | (yPlane[inY + x] & 0xff)];
+            }
+        }
+    }
+
+    private static int imageAngle(int xVal, int yVal) {
+        int newValue = 0;
+        if (xVal == 0) {
+            if (yVal != 0) {
+                newValue = 90;
+            }
+        } else {
+            float angle = (float) Math.toDegrees(Math.atan((float) yVal / (float) xVal));
+            if (angle >= 157.5 || angle < 22.5) {
+                newValue = 0;
+            } else if (angle >= 22.5 && angle < 67.5) {
+                newValue = 135;
+            } else if (angle >= 67.5 && angle < 112.5) {
+                newValue = 90;
+            } else if (angle >= 112.5 && angle < 157.5) {
+                newValue = 45;
+            }
+        }
+        return newValue;
+    }
+
+    public static PlanarImage calculateNonMaximalSuppression(PlanarImage gradientImage, PlanarImage angleImage) {
+        PlanarImage output = new PlanarImage(gradientImage.width, gradientImage.height, gradientImage.planes.length);
+        calculateNonMaximalSuppression(gradientImage, angleImage, output);
+        return output;
+    }
+
+    /**
+     * Writes the suppressed gradient into output, which needs as many channels as gradientImage and mustn't be it.
+     */
+    public static void calculateNonMaximalSuppression(PlanarImage gradientImage, PlanarImage angleImage,
+                                                      PlanarImage output) {
+        gradientImage.copyTo(output);
+        byte[] grad = gradientImage.getIntensityPlane();
+        byte[] angles = angleImage.getIntensityPlane();
+        int gs = gradientImage.stride;
+        int as = angleImage.stride;
+        for (int y = 1; y < gradientImage.height - 1; y++) {
+            for (int x = 1; x < gradientImage.width - 1; x++) {
+                int i = y * gs + x;
+                int currentPixel = grad[i] & 0xff;
+                int angle = angles[y * as + x] & 0xff;
+                int firstNeighbor = 0;
+                int secondNeighbor = 0;
+                if (angle == 0) {
+                    firstNeighbor = grad[i - 1] & 0xff;
+                    secondNeighbor = grad[i + 1] & 0xff;
+                } else if (angle == 90) {
+                    firstNeighbor = grad[i - gs] & 0xff;
+                    secondNeighbor = grad[i + gs] & 0xff;
+                } else if (angle == 45) {
+                    firstNeighbor = grad[i + gs + 1] & 0xff;
+                    secondNeighbor = grad[i - gs - 1] & 0xff;
+                } else if (angle == 135) {
+                    firstNeighbor = grad[i - gs + 1] & 0xff;
+                    secondNeighbor = grad[i + gs - 1] & 0xff;
+                }
+                if (currentPixel < firstNeighbor || currentPixel < secondNeighbor) {
+                    int o = y * output.stride + x;
+                    for (byte[] plane : output.planes) {
+                        plane[o] = 0;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Keeps pixels above hThresh, plus any pixel above lThresh that is connected to one. See {@link Hysteresis}.
+     */
+    public static PlanarImage applyHysteresis(PlanarImage nonMax, int lThresh, int hThresh) {
+        return new Hysteresis(lThresh, hThresh).apply(nonMax);
+    }
+
+    public static PlanarImage convolveImage(PlanarImage sourceImage, float[][] filter, BoundaryPolicies p) {
+        PlanarImage output = new PlanarImage(sourceImage.width, sourceImage.height, 1);
+        convolveRows(sourceImage, filter, p, output, 0, sourceImage.height);
+        return output;
+    }
+
+    /**
+     * Convolves into output, taking the scratch buffer and the kernel's separable factors from the workspace so that
+     * repeated calls with the same kernel array allocate nothing.
+     */
+    public static void convolveImage(PlanarImage sourceImage, float[][] filter, BoundaryPolicies p,
+                                     PlanarImage output, Workspace workspace) {
+        checkDestination(output, sourceImage.width, sourceImage.height, 1);
+        float[][] factors = workspace.separateKernel(filter);
+        convolveRows(sourceImage, filter, factors, chooseConvolver(sourceImage, filter, factors), p,
+                sourceImage.intensityChannels(), output, 0, sourceImage.height, 0, workspace);
+    }
+
+    /**
+     * Same as {@link #convolveImage(PlanarImage, float[][], BoundaryPolicies)}, but splits the output into row bands
+     * and convolves them on the given pool. Each band reads the halo rows its kernel needs straight out of the shared
+     * source, and every pixel goes through exactly the same arithmetic, so the output is identical to the sequential one.
+     * That includes the choice between the direct loops and the FFT, which is made once for the whole image, and the
+     * FFT's tiles, which sit on the same grid whichever band they're in.
+     */
+    public static PlanarImage convolveImage(PlanarImage sourceImage, float[][] filter, BoundaryPolicies p,
+                                            ForkJoinPool pool) {
+        PlanarImage output = new PlanarImage(sourceImage.width, sourceImage.height, 1);
+        pool.invoke(new ConvolutionTask(sourceImage, filter, p, sourceImage.intensityChannels(), output));
+        return output;
+    }
+
+    /**
+     * Convolves a window cut out of a bigger image, whose first row is row tileOffset of that image. The caller makes
+     * the choice between the direct loops and the FFT once for the bigger image, and the FFT's tiles are laid out on
+     * that image's grid, so rows far enough from the window's edges come out exactly as they would for the whole
+     * image. How far is enough is the kernel's radius for the direct loops, and the radius plus
+     * {@link FFTConvolver#getBlock} for the FFT.
+     */
+    static PlanarImage convolveWindow(PlanarImage window, float[][] filter, float[][] factors, FFTConvolver fft,
+                                      BoundaryPolicies p, int tileOffset) {
+        PlanarImage output = new PlanarImage(window.width, window.height, 1);
+        convolveRows(window, filter, factors, fft, p, window.intensityChannels(), output, 0, window.height, tileOffset,
+                null);
+        return output;
+    }
+
+    /**
+     * Asks the FFT's cost model about the whole image, so that every part of it is convolved the same way.
+     *
+     * @return The convolver to use, or null for the direct loops
+     */
+    static FFTConvolver chooseConvolver(PlanarImage sourceImage, float[][] filter, float[][] factors) {
+        return FFTConvolver.choose(filter, factors != null, sourceImage.width, sourceImage.height);
+    }
+
+    /**
+     * Convolves every channel of the image, alpha included, rather than just the intensity plane. All the channels of
+     * a row band are convolved together, so the kernel is set up once and the FFT route pairs up tiles across
+     * channels. Each output plane is exactly what convolveImage gives for that plane on its own.
+     */
+    public static PlanarImage convolveChannels(PlanarImage sourceImage, float[][] filter, BoundaryPolicies p) {
+        PlanarImage output = new PlanarImage(sourceImage.width, sourceImage.height, sourceImage.planes.length);
+        convolveRows(sourceImage, filter, p, sourceImage.allChannels(), output, 0, sourceImage.height);
+        return output;
+    }
+
+    /**
+     * Same as {@link #convolveChannels(PlanarImage, float[][], BoundaryPolicies)}, with the row bands convolved on the
+     * given pool.
+     */
+    public static PlanarImage convolveChannels(PlanarImage sourceImage, float[][] filter, BoundaryPolicies p,
+                                               ForkJoinPool pool) {
+        PlanarImage output = new PlanarImage(sourceImage.width, sourceImage.height, sourceImage.planes.length);
+        pool.invoke(new ConvolutionTask(sourceImage, filter, p, sourceImage.allChannels(), output));
+        return output;
+    }
+
+    /**
+     * Smooths the image with a Gaussian whose kernel is sized from sigma, as a horizontal pass followed by a
+     * vertical one. This costs O(sigma) per pixel rather than the O(sigma^2) of a full 2D kernel.
+     */
+    public static PlanarImage smoothGaussian(PlanarImage sourceImage, float sigma, BoundaryPolicies p) {
+        float[] kernel = generateGaussianKernel1D(sigma);
+        PlanarImage output = new PlanarImage(sourceImage.width, sourceImage.height, 1);
+        convolveSeparableRows(sourceImage, kernel, kernel, 1, p, output, 0, sourceImage.height);
+        return output;
+    }
+
+    /**
+     * Smooths every channel of the image with the same Gaussian as {@link #smoothGaussian}, a row band at a time.
+     */
+    public static PlanarImage smoothGaussianChannels(PlanarImage sourceImage, float sigma, BoundaryPolicies p) {
+        float[] kernel = generateGaussianKernel1D(sigma);
+        PlanarImage output = new PlanarImage(sourceImage.width, sourceImage.height, sourceImage.planes.length);
+        convolveSeparableRows(sourceImage, kernel, kernel, 1, p, sourceImage.allChannels(), output, 0,
+                sourceImage.height, null);
+        return output;
+    }
+
+    /**
+     * A normalised 1D Gaussian that reaches out three sigmas on either side, which covers over 99.7% of its weight.
+     */
+    public static float[] generateGaussianKernel1D(float sigma) {
+        if (sigma <= 0) {
+            throw new IllegalArgumentException("Sigma must be positive, was " + sigma);
+        }
+        int radius = Math.max(1, (int) Math.ceil(3 * sigma));
+        float[] kernel = new float[2 * radius + 1];
+        double twoSigmaSquared = 2d * sigma * sigma;
+        double sum = 0;
+        for (int i = -radius; i <= radius; i++) {
+            double value = Math.exp(-(i * i) / twoSigmaSquared);
+            kernel[i + radius] = (float) value;
+            sum += value;
+        }
+        for (int i = 0; i < kernel.length; i++) {
+            kernel[i] = (float) (kernel[i] / sum);
+        }
+        return kernel;
+    }
+
+    /**
+     * Splits a rank-1 kernel into the factors filter[x][y] = horizontal[x] * vertical[y].
+     *
+     * @return {horizontal, vertical}, or null if the kernel isn't separable
+     */
+    static float[][] separateKernel(float[][] filter) {
+        int size = filter.length;
+        if (size < 2 || filter[0].length != size) {
+            return null;
+        }
+        // Factor around the largest element to keep the division well conditioned
+        int pivotX = 0;
+        int pivotY = 0;
+        float max = 0;
+        for (int x = 0; x < size; x++) {
+            if (filter[x].length != size) {
+                return null;
+            }
+            for (int y = 0; y < size; y++) {
+                if (Math.abs(filter[x][y]) > max) {
+                    max = Math.abs(filter[x][y]);
+                    pivotX = x;
+                    pivotY = y;
+                }
+            }
+        }
+        if (max == 0) {
+            return null;
+        }
+        float[] horizontal = new float[size];
+        float[] vertical = new float[size];
+        for (int i = 0; i < size; i++) {
+            horizontal[i] = filter[i][pivotY];
+            vertical[i] = filter[pivotX][i] / filter[pivotX][pivotY];
+        }
+        float tolerance = max * 1e-6f;
+        for (int x = 0; x < size; x++) {
+            for (int y = 0; y < size; y++) {
+                if (Math.abs(filter[x][y] - horizontal[x] * vertical[y]) > tolerance) {
+                    return null;
+                }
+            }
+        }
+        return new float[][]{horizontal, vertical};
+    }
+
+    /**
+     * Convolves rows [y0, y1) of the source's intensity plane into the matching rows of dest. Separable kernels take
+     * the two pass route, which agrees with the full 2D convolution up to float rounding. Kernels big enough for
+     * {@link FFTConvolver}'s cost model to expect the FFT to be cheaper go through that instead, which agrees to
+     * within one gray level.
+     */
+    static void convolveRows(PlanarImage sourceImage, float[][] filter, BoundaryPolicies p, PlanarImage dest,
+                             int y0, int y1) {
+        convolveRows(sourceImage, filter, p, sourceImage.intensityChannels(), dest, y0, y1);
+    }
+
+    /**
+     * Convolves rows [y0, y1) of each of the given source planes into the matching plane of dest. Every channel of a
+     * row band is done before moving on to the next band, so the kernel is set up once and the band's source rows are
+     * read while they're still in cache. Whether to use the FFT is decided for the whole image rather than the band.
+     */
+    static void convolveRows(PlanarImage sourceImage, float[][] filter, BoundaryPolicies p, int[] channels,
+                             PlanarImage dest, int y0, int y1) {
+        float[][] factors = separateKernel(filter);
+        convolveRows(sourceImage, filter, factors, chooseConvolver(sourceImage, filter, factors), p, channels, dest,
+                y0, y1, 0, null);
+    }
+
+    /**
+     * @param fft        The convolver {@link #chooseConvolver} picked for the whole image, or null for the direct loops
+     * @param tileOffset The row of the whole image that row 0 of the source is, which the FFT's tiles are aligned to
+     */
+    private static void convolveRows(PlanarImage sourceImage, float[][] filter, float[][] factors, FFTConvolver fft,
+                                     BoundaryPolicies p, int[] channels, PlanarImage dest, int y0, int y1,
+                                     int tileOffset, Workspace workspace) {
+        float fSum = getFilterSum(filter);
+        if (Math.abs(fSum) < 0.0001) {
+            fSum = 1;
+        }
+        if (fft != null) {
+            fft.convolveRows(sourceImage, p, channels, dest, y0, y1, tileOffset);
+        } else if (factors != null) {
+            convolveSeparableRows(sourceImage, factors[0], factors[1], fSum, p, channels, dest, y0, y1, workspace);
+        } else {
+            convolveFullRows(sourceImage, filter, fSum, p, channels, dest, y0, y1, workspace);
+        }
+    }
+
+    /**
+     * Runs the horizontal kernel over every row a band needs, halo included, into a float scratch buffer and then
+     * runs the vertical kernel down it. Bands are kept small so the scratch buffer stays in cache.
+     */
+    static void convolveSeparableRows(PlanarImage sourceImage, float[] horizontal, float[] vertical, float fSum,
+                                      BoundaryPolicies p, PlanarImage dest, int y0, int y1) {
+        convolveSeparableRows(sourceImage, horizontal, vertical, fSum, p, sourceImage.intensityChannels(), dest, y0,
+                y1, null);
+    }
+
+    /**
+     * Each band redoes the horizontal pass over the 2 * radius halo rows it shares with its neighbours, so bands are
+     * kept tall enough next to the radius for that to stay a small part of the work.
+     */
+    static int separableBandRows(int radius) {
+        return Math.max(64, 4 * radius);
+    }
+
+    private static void convolveSeparableRows(PlanarImage sourceImage, float[] horizontal, float[] vertical,
+                                              float fSum, BoundaryPolicies p, int[] channels, PlanarImage dest,
+                                              int y0, int y1, Workspace workspace) {
+        int width = sourceImage.width;
+        int height = sourceImage.height;
+        int fH = vertical.length / 2;
+        int bandRows = separableBandRows(fH);
+        // The band's rows, followed by one more row to sum the vertical taps into
+        int rowsSize = (Math.min(bandRows, y1 - y0) + 2 * fH) * width;
+        float[] scratch = workspace != null ? workspace.floats(rowsSize + width) : new float[rowsSize + width];
+        for (int bandStart = y0; bandStart < y1; bandStart += bandRows) {
+            int bandEnd = Math.min(y1, bandStart + bandRows);
+            int first = bandStart - fH;
+            int last = bandEnd + fH;
+            for (int c = 0; c < channels.length; c++) {
+                byte[] src = sourceImage.planes[channels[c]];
+                for (int row = first; row < last; row++) {
+                    int iY = boundaryIndex(row, height, p);
+                    if (iY >= 0) {
+                        horizontalPass(src, sourceImage, iY, horizontal, p, scratch, (row - first) * width);
+                    }
+                }
+                for (int y = bandStart; y < bandEnd; y++) {
+                    clearRow(scratch, rowsSize, width);
+                    for (int fY = -fH; fY <= fH; fY++) {
+                        if (boundaryIndex(y + fY, height, p) < 0) {
+                            continue;
+                        }
+                        addScaledRow(scratch, (y + fY - first) * width, vertical[fY + fH], scratch, rowsSize, width);
+                    }
+                    storeRow(scratch, rowsSize, fSum, dest.planes[c], y * dest.stride, width);
+                }
+            }
+        }
+    }
+
+    /*
+     * The loops below run a single tap across a whole row at a time, rather than all the taps over one pixel at a
+     * time. They have no branches and no dependence between iterations, which lets the JIT compile them to SIMD
+     * instructions, and since every pixel still adds up its taps in the same order the sums come out bit for bit the
+     * same as the pixel at a time loops. Pixels close enough to the edge for some taps to fall outside the image are
+     * left to the per pixel code, which handles the boundary policy.
+     */
+
+    private static void clearRow(float[] acc, int offset, int length) {
+        for (int x = 0; x < length; x++) {
+            acc[offset + x] = 0;
+        }
+    }
+
+    private static void addScaledRow(float[] src, int in, float weight, float[] acc, int offset, int length) {
+        for (int x = 0; x < length; x++) {
+            acc[offset + x] += src[in + x] * weight;
+        }
+    }
+
+    private static void addScaledRow(byte[] src, int in, float weight, float[] acc, int offset, int length) {
+        for (int x = 0; x < length; x++) {
+            acc[offset + x] += (float) (src[in + x] & 0xff) * weight;
+        }
+    }
+
+    private static void storeRow(float[] acc, int offset, float fSum, byte[] out, int o, int length) {
+        for (int x = 0; x < length; x++) {
+            int filterTotal = Math.min(255, Math.abs(Math.round(acc[offset + x] / fSum)));
+            out[o + x] = (byte) filterTotal;
+        }
+    }
+
+    private static void horizontalPass(byte[] src, PlanarImage sourceImage, int row, float[] kernel,
+                                       BoundaryPolicies p, float[] dest, int offset) {
+        int width = sourceImage.width;
+        int in = row * sourceImage.stride;
+        int fW = kernel.length / 2;
+        int interiorStart = Math.min(fW, width);
+        int interiorEnd = Math.max(interiorStart, width - fW);
+        clearRow(dest, offset + interiorStart, interiorEnd - interiorStart);
+        for (int fX = -fW; fX <= fW; fX++) {
+            addScaledRow(src, in + interiorStart + fX, kernel[fX + fW], dest, offset + interiorStart,
+                    interiorEnd - interiorStart);
+        }
+        for (int x = 0; x < interiorStart; x++) {
+            dest[offset + x] = horizontalEdgePixel(src, in, width, x, kernel, p);
+        }
+        for (int x = interiorEnd; x < width; x++) {
+            dest[offset + x] = horizontalEdgePixel(src, in, width, x, kernel, p);
+        }
+    }
+
+    private static float horizontalEdgePixel(byte[] src, int in, int width, int x, float[] kernel, BoundaryPolicies p) {
+        int fW = kernel.length / 2;
+        float sum = 0;
+        for (int fX = -fW; fX <= fW; fX++) {
+            int iX = x + fX;
+            if (iX < 0 || iX >= width) {
+                // None gives up on the rest of the row at the first pixel off the edge, like the 2D version
+                if (p == BoundaryPolicies.None) {
+                    break;
+                }
+                iX = boundaryIndex(iX, width, p);
+                if (iX < 0) {
+                    continue;
+                }
+            }
+            sum += (float) (src[in + iX] & 0xff) * kernel[fX + fW];
+        }
+        return sum;
+    }
+
+    private static void convolveFullRows(PlanarImage sourceImage, float[][] filter, float fSum, BoundaryPolicies p,
+                                         int[] channels, PlanarImage dest, int y0, int y1, Workspace workspace) {
+        int width = sourceImage.width;
+        int height = sourceImage.height;
+        int stride = sourceImage.stride;
+        int fW = filter[0].length / 2;
+        int fH = filter.length / 2;
+        int interiorStart = Math.min(fW, width);
+        int interiorEnd = Math.max(interiorStart, width - fW);
+        float[] acc = workspace != null ? workspace.floats(width) : new float[width];
+        for (int y = y0; y < y1; y++) {
+            int o = y * dest.stride;
+            for (int c = 0; c < channels.length; c++) {
+                byte[] src = sourceImage.planes[channels[c]];
+                clearRow(acc, interiorStart, interiorEnd - interiorStart);
+                for (int fY = -fH; fY <= fH; fY++) {
+                    int iY = boundaryIndex(y + fY, height, p);
+                    if (iY < 0) {
+                        continue;
+                    }
+                    for (int fX = -fW; fX <= fW; fX++) {
+                        addScaledRow(src, iY * stride + interiorStart + fX, filter[fX + fW][fY + fH], acc,
+                                interiorStart, interiorEnd - interiorStart);
+                    }
+                }
+                for (int x = 0; x < interiorStart; x++) {
+                    acc[x] = fullEdgePixel(src, sourceImage, filter, p, x, y);
+                }
+                for (int x = interiorEnd; x < width; x++) {
+                    acc[x] = fullEdgePixel(src, sourceImage, filter, p, x, y);
+                }
+                storeRow(acc, 0, fSum, dest.planes[c], o, width);
+            }
+        }
+    }
+
+    private static float fullEdgePixel(byte[] src, PlanarImage sourceImage, float[][] filter, BoundaryPolicies p,
+                                       int x, int y) {
+        int fW = filter[0].length / 2;
+        int fH = filter.length / 2;
+        float filterSum = 0;
+        for (int fY = -fH; fY <= fH; fY++) {
+            int iY = boundaryIndex(y + fY, sourceImage.height, p);
+            if (iY < 0) {
+                continue;
+            }
+            int row = iY * sourceImage.stride;
+            for (int fX = -fW; fX <= fW; fX++) {
+                int iX = x + fX;
+                if (iX < 0 || iX >= sourceImage.width) {
+                    if (p == BoundaryPolicies.None) {
+                        break;
+                    }
+                    iX = boundaryIndex(iX, sourceImage.width, p);
+                    if (iX < 0) {
+                        continue;
+                    }
+                }
+                filterSum += (float) (src[row + iX] & 0xff) * filter[fX + fW][fY + fH];
+            }
+        }
+        return filterSum;
+    }
+
+    /**
+     * The pixel a boundary policy reads in place of index i along a row or column of length n, or -1 where it reads
+     * zero. Rows outside the image read zero under None, while columns outside it end the kernel row early, which
+     * callers have to handle themselves. Reflection mirrors about the edge of the outermost pixel, so that pixel is
+     * repeated: -1 reads 0 and n reads n - 1.
+     */
+    static int boundaryIndex(int i, int n, BoundaryPolicies p) {
+        if (i >= 0 && i < n) {
+            return i;
+        }
+        switch (p) {
+            case BoundaryReplication:
+                return i < 0 ? 0 : n - 1;
+            case BoundaryReflection:
+                int period = 2 * n;
+                int j = (i % period + period) % period;
+                return j < n ? j : period - 1 - j;
+            case PeriodicRepetition:
+                return (i % n + n) % n;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Makes sure an output image passed in by the caller is big enough and has the channels an operation writes.
+     */
+    private static void checkDestination(PlanarImage dest, int width, int height, int channels) {
+        if (dest.width != width || dest.height != height || dest.planes.length < channels) {
+            throw new IllegalArgumentException("Expected a " + width + "x" + height + " destination with " + channels
+                    + " channels, got " + dest.width + "x" + dest.height + " with " + dest.planes.length);
+        }
+    }
+
+    public static float getFilterSum(float[][] filter) {
+        float sum = 0;
+        for (int y = 0; y < filter.length; y++) {
+            for (int x = 0; x < filter[0].length; x++) {
+                sum += filter[x][y];
+            }
+        }
+        return sum;
+    }
+
+    private static class ConvolutionTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        // Bands smaller than this many pixels aren't worth the cost of forking
+        private static final int MIN_BAND_PIXELS = 1 << 16;
+
+        // Every band reads halo rows on top of its own, so on wide images a band is kept a few times taller than the
+        // kernel's radius as well as MIN_BAND_PIXELS big
+        private final int minRows;
+        private final PlanarImage source;
+        private final float[][] filter;
+        private final float[][] factors;
+        private final FFTConvolver fft;
+        private final BoundaryPolicies policy;
+        private final int[] channels;
+        private final PlanarImage dest;
+        private final int y0;
+        private final int y1;
+
+        /**
+         * Convolves the whole image, deciding how once so that every band does it the same way.
+         */
+        ConvolutionTask(PlanarImage source, float[][] filter, BoundaryPolicies policy, int[] channels,
+                        PlanarImage dest) {
+            this(source, filter, separateKernel(filter), policy, channels, dest);
+        }
+
+        private ConvolutionTask(PlanarImage source, float[][] filter, float[][] factors, BoundaryPolicies policy,
+                                int[] channels, PlanarImage dest) {
+            this(source, filter, factors, chooseConvolver(source, filter, factors), policy, channels, dest, 0,
+                    source.height, Math.max(MIN_BAND_PIXELS / Math.max(1, source.width),
+                            separableBandRows(Math.max(filter.length, filter[0].length) / 2)));
+        }
+
+        private ConvolutionTask(PlanarImage source, float[][] filter, float[][] factors, FFTConvolver fft,
+                                BoundaryPolicies policy, int[] channels, PlanarImage dest, int y0, int y1,
+                                int minRows) {
+            this.minRows = minRows;
+            this.source = source;
+            this.filter = filter;
+            this.factors = factors;
+            this.fft = fft;
+            this.policy = policy;
+            this.channels = channels;
+            this.dest = dest;
+            this.y0 = y0;
+            this.y1 = y1;
+        }
+
+        @Override
+        protected void compute() {
+            int rows = y1 - y0;
+            int mid = y0 + rows / 2;
+            if (fft != null) {
+                // Split between tiles so no tile is transformed by both halves
+                mid -= mid % fft.getBlock();
+            }
+            if (rows < 2 * minRows || mid <= y0) {
+                convolveRows(source, filter, factors, fft, policy, channels, dest, y0, y1, 0, null);
+                return;
+            }
+            invokeAll(new ConvolutionTask(source, filter, factors, fft, policy, channels, dest, y0, mid, minRows),
+                    new ConvolutionTask(source, filter, factors, fft, policy, channels, dest, mid, y1, minRows));
+        }
+    }
+}
@@ -0,0 +1,487 @@
+package ImageProcessing;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * This software falls under the MIT license, as follows:
+ * Copyright (C) 2012
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * <p/>
+ * Remembers the results of operations so running the same operation over the same pixels again is a lookup. A result
+ * is keyed by a hash of the source's pixels together with the operation's name and every parameter, so it doesn't
+ * matter whether the source is the same object or the same picture decoded again.
+ * <p/>
+ * Results are kept in memory, least recently used first out once they take up more than the memory budget. With a
+ * directory, results pushed out of memory are written there as {@link MappedImage} files, which have a budget of
+ * their own and are picked up again by a cache opened on the same directory later. When several threads ask for the
+ * same result at once only one of them works it out, and the others wait for it.
+ * <p/>
+ * Every image handed back is a copy, so callers are free to change it. The pixel hash is 128 bits and fast rather than
+ * cryptographic, fine for images from the same service but not for ones crafted to collide.
+ */
+public class ResultCache {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    // What fileName() generates, and what a write that never got renamed leaves behind. Nothing else in the directory
+    // is the cache's, so nothing else is counted or deleted
+    private static final Pattern CACHE_FILE = Pattern.compile("[0-9a-f]{40}" + Pattern.quote(MappedImage.EXTENSION));
+    private static final Pattern PARTIAL_FILE = Pattern.compile(CACHE_FILE.pattern() + "\\..*\\.part");
+
+    private final long maxMemoryBytes;
+    private final File directory;
+    private final long maxDiskBytes;
+
+    // In access order, so iteration starts from the least recently used
+    private final LinkedHashMap<String, PlanarImage> memory = new LinkedHashMap<String, PlanarImage>(16, 0.75f, true);
+    private long memoryBytes;
+    private final LinkedHashMap<String, Long> disk = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long diskBytes;
+    private final ConcurrentMap<String, FutureTask<PlanarImage>> inFlight =
+            new ConcurrentHashMap<String, FutureTask<PlanarImage>>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong sharedComputations = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong diskEvictions = new AtomicLong();
+
+    /**
+     * A cache that only keeps results in memory.
+     */
+    public ResultCache(long maxMemoryBytes) {
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.directory = null;
+        this.maxDiskBytes = 0;
+    }
+
+    /**
+     * A cache that moves results it drops from memory into a directory, picking up whatever an earlier cache left there.
+     * Only files named the way the cache names them are picked up or deleted, so other files in the directory are safe,
+     * though it's still best to give the cache a directory of its own.
+     */
+    public ResultCache(long maxMemoryBytes, File directory, long maxDiskBytes) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Couldn't create cache directory " + directory);
+        }
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.directory = directory;
+        this.maxDiskBytes = maxDiskBytes;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            // Oldest first, so they're the first to go
+            Arrays.sort(files, new Comparator<File>() {
+                public int compare(File a, File b) {
+                    return Long.compare(a.lastModified(), b.lastModified());
+                }
+            });
+            for (File file : files) {
+                if (!file.isFile()) {
+                    continue;
+                }
+                if (CACHE_FILE.matcher(file.getName()).matches()) {
+                    disk.put(file.getName(), file.length());
+                    diskBytes += file.length();
+                } else if (PARTIAL_FILE.matcher(file.getName()).matches()) {
+                    // Left by a cache that stopped part way through a write
+                    file.delete();
+                }
+            }
+        }
+        trimDisk();
+    }
+
+    public PlanarImage detectEdgesSobel(final PlanarImage source) {
+        return apply(source, new ImageOperation() {
+            public PlanarImage apply(PlanarImage img) {
+                return Image.detectEdgesSobel(img);
+            }
+        }, "detectEdgesSobel");
+    }
+
+    public PlanarImage detectEdgesCanny(PlanarImage source, final float sigma, final int lowThreshold,
+                                        final int highThreshold) {
+        return apply(source, new ImageOperation() {
+            public PlanarImage apply(PlanarImage img) {
+                return Image.detectEdgesCanny(img, sigma, lowThreshold, highThreshold);
+            }
+        }, "detectEdgesCanny", sigma, lowThreshold, highThreshold);
+    }
+
+    public PlanarImage convolveImage(PlanarImage source, final float[][] filter, final BoundaryPolicies p) {
+        return apply(source, new ImageOperation() {
+            public PlanarImage apply(PlanarImage img) {
+                return PlanarImage.convolveImage(img, filter, p);
+            }
+        }, "convolveImage", filter, p);
+    }
+
+    public PlanarImage smoothGaussian(PlanarImage source, final float sigma, final BoundaryPolicies p) {
+        return apply(source, new ImageOperation() {
+            public PlanarImage apply(PlanarImage img) {
+                return PlanarImage.smoothGaussian(img, sigma, p);
+            }
+        }, "smoothGaussian", sigma, p);
+    }
+
+    /**
+     * The result of running operation over source, worked out only if it isn't cached already.
+     *
+     * @param name       Names the operation in the key, so two operations mustn't share a name
+     * @param parameters Everything besides the source that changes the result. They're compared by their string
+     *                   form, with arrays compared element by element
+     */
+    public PlanarImage apply(final PlanarImage source, final ImageOperation operation, String name,
+                             Object... parameters) {
+        final String key = name + Arrays.deepToString(parameters) + "@" + source.getWidth() + "x" + source.getHeight()
+                + "x" + source.getChannels() + ":" + contentHash(source);
+        PlanarImage cached = lookup(key);
+        if (cached != null) {
+            return cached;
+        }
+        FutureTask<PlanarImage> task = new FutureTask<PlanarImage>(new Callable<PlanarImage>() {
+            public PlanarImage call() {
+                // Someone may have finished it between our lookup and this task going in
+                PlanarImage image = lookupQuietly(key);
+                if (image == null) {
+                    misses.incrementAndGet();
+                    image = operation.apply(source);
+                    store(key, image);
+                }
+                return image;
+            }
+        });
+        FutureTask<PlanarImage> running = inFlight.putIfAbsent(key, task);
+        if (running == null) {
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(key, task);
+            }
+            running = task;
+        } else {
+            sharedComputations.incrementAndGet();
+        }
+        try {
+            return running.get().copy();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for " + name, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * A copy of the cached result, counting the hit, or null.
+     */
+    private PlanarImage lookup(String key) {
+        // Cached images are never written to, so they can be copied outside the lock
+        PlanarImage image = lookupQuietly(key);
+        if (image != null) {
+            hits.incrementAndGet();
+            return image.copy();
+        }
+        image = readDisk(key);
+        if (image != null) {
+            diskHits.incrementAndGet();
+            store(key, image);
+            return image.copy();
+        }
+        return null;
+    }
+
+    /**
+     * The cached result itself, without counting anything.
+     */
+    private PlanarImage lookupQuietly(String key) {
+        synchronized (memory) {
+            return memory.get(key);
+        }
+    }
+
+    private void store(String key, PlanarImage image) {
+        long size = sizeOf(image);
+        List<Map.Entry<String, PlanarImage>> evicted = new ArrayList<Map.Entry<String, PlanarImage>>();
+        synchronized (memory) {
+            if (size <= maxMemoryBytes) {
+                PlanarImage previous = memory.put(key, image);
+                memoryBytes += size - (previous == null ? 0 : sizeOf(previous));
+            } else {
+                evicted.add(new AbstractMap.SimpleEntry<String, PlanarImage>(key, image));
+            }
+            Iterator<Map.Entry<String, PlanarImage>> eldest = memory.entrySet().iterator();
+            while (memoryBytes > maxMemoryBytes && eldest.hasNext()) {
+                Map.Entry<String, PlanarImage> entry = eldest.next();
+                eldest.remove();
+                memoryBytes -= sizeOf(entry.getValue());
+                evictions.incrementAndGet();
+                evicted.add(entry);
+            }
+        }
+        // Disk writes happen outside the lock so lookups aren't held up by them
+        for (Map.Entry<String, PlanarImage> entry : evicted) {
+            writeDisk(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private PlanarImage readDisk(String key) {
+        if (directory == null) {
+            return null;
+        }
+        String name = fileName(key);
+        synchronized (disk) {
+            if (disk.get(name) == null) {
+                return null;
+            }
+        }
+        try {
+            // Read rather than mapped, a mapping would only be copied out of once
+            return MappedImage.read(new File(directory, name));
+        } catch (IOException e) {
+            // Deleted or damaged behind our back, so treat it as never having been cached
+            forgetDisk(name);
+            return null;
+        }
+    }
+
+    private void writeDisk(String key, PlanarImage image) {
+        if (directory == null || sizeOf(image) > maxDiskBytes) {
+            return;
+        }
+        String name = fileName(key);
+        synchronized (disk) {
+            if (disk.containsKey(name)) {
+                return;
+            }
+        }
+        File file = new File(directory, name);
+        // Written under a temporary name and renamed, so a reader never sees a half written file. The name is unique, as
+        // two threads can evict the same result at once. It's written rather than mapped, since a mapping would keep
+        // the file open until it's garbage collected, and on Windows an open file can't be renamed or deleted
+        File partial = null;
+        try {
+            partial = File.createTempFile(name + ".", ".part", directory);
+            MappedImage.write(image, partial);
+            if (!partial.renameTo(file)) {
+                // Most likely another thread got there first, which is just as good
+                partial.delete();
+                return;
+            }
+        } catch (IOException e) {
+            // The disk tier is best effort, the result is still right without it
+            if (partial != null) {
+                partial.delete();
+            }
+            return;
+        }
+        synchronized (disk) {
+            Long previous = disk.put(name, file.length());
+            diskBytes += file.length() - (previous == null ? 0 : previous);
+        }
+        trimDisk();
+    }
+
+    private void trimDisk() {
+        List<Map.Entry<String, Long>> deleted = new ArrayList<Map.Entry<String, Long>>();
+        synchronized (disk) {
+            Iterator<Map.Entry<String, Long>> eldest = disk.entrySet().iterator();
+            while (diskBytes > maxDiskBytes && eldest.hasNext()) {
+                Map.Entry<String, Long> entry = eldest.next();
+                eldest.remove();
+                diskBytes -= entry.getValue();
+                deleted.add(entry);
+            }
+        }
+        for (Map.Entry<String, Long> entry : deleted) {
+            File file = new File(directory, entry.getKey());
+            if (file.delete() || !file.exists()) {
+                diskEvictions.incrementAndGet();
+            } else {
+                // Still there, perhaps open elsewhere, so it still takes up space. It goes back in as the most recently
+                // used, so the next trim tries the others first
+                synchronized (disk) {
+                    if (!disk.containsKey(entry.getKey())) {
+                        disk.put(entry.getKey(), entry.getValue());
+                        diskBytes += entry.getValue();
+                    }
+                }
+            }
+        }
+    }
+
+    private void forgetDisk(String name) {
+        synchronized (disk) {
+            Long size = disk.remove(name);
+            if (size != null) {
+                diskBytes -= size;
+            }
+        }
+    }
+
+    /**
+     * Drops every result held in memory. Files on disk are kept.
+     */
+    public void clear() {
+        synchronized (memory) {
+            memory.clear();
+            memoryBytes = 0;
+        }
+    }
+
+    /**
+     * Lookups answered from memory.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Lookups answered from disk.
+     */
+    public long getDiskHitCount() {
+        return diskHits.get();
+    }
+
+    /**
+     * Lookups that had to run the operation.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Lookups that waited for another thread already working out the same result.
+     */
+    public long getSharedCount() {
+        return sharedComputations.get();
+    }
+
+    /**
+     * Results pushed out of memory to stay inside the memory budget.
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * Files deleted to stay inside the disk budget.
+     */
+    public long getDiskEvictionCount() {
+        return diskEvictions.get();
+    }
+
+    public long getMemoryBytes() {
+        synchronized (memory) {
+            return memoryBytes;
+        }
+    }
+
+    public long getDiskBytes() {
+        synchronized (disk) {
+            return diskBytes;
+        }
+    }
+
+    /**
+     * 128 bits of hash over the visible pixels, as hex. Padding past the width of each row isn't read, so two images
+     * with the same pixels hash the same whatever their strides. Each half mixes 8 bytes at a time in its own chain,
+     * so the two run side by side.
+     */
+    static String contentHash(PlanarImage img) {
+        long h1 = 0x9E3779B97F4A7C15L;
+        long h2 = 0xC2B2AE3D27D4EB4FL;
+        int width = img.getWidth();
+        for (int c = 0; c < img.getChannels(); c++) {
+            ByteBuffer plane = ByteBuffer.wrap(img.getPlane(c)).order(ByteOrder.LITTLE_ENDIAN);
+            for (int y = 0; y < img.getHeight(); y++) {
+                int i = y * img.getStride();
+                int end = i + width;
+                for (; i + 8 <= end; i += 8) {
+                    long v = plane.getLong(i);
+                    h1 = Long.rotateLeft(h1 ^ v * 0x87C37B91114253D5L, 31) * 0x4CF5AD432745937FL;
+                    h2 = Long.rotateLeft(h2 + v * 0x4CF5AD432745937FL, 33) * 0x87C37B91114253D5L;
+                }
+                for (; i < end; i++) {
+                    int v = plane.get(i) & 0xff;
+                    h1 = (h1 ^ v) * 0x100000001B3L;
+                    h2 = (h2 + v) * 0x9E3779B97F4A7C15L;
+                }
+            }
+            h1 ^= c;
+            h2 ^= c;
+        }
+        return hex(mix(h1 ^ h2 >>> 17)) + hex(mix(h2 + h1));
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        return h ^ h >>> 33;
+    }
+
+    private static String hex(long value) {
+        String digits = Long.toHexString(value);
+        return "0000000000000000".substring(digits.length()) + digits;
+    }
+
+    /**
+     * Keys can be long once a kernel is in them, so files are named after a digest of the key.
+     */
+    private static String fileName(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(UTF8));
+            StringBuilder name = new StringBuilder();
+            for (int i = 0; i < 20; i++) {
+                name.append(Character.forDigit(digest[i] >> 4 & 0xf, 16)).append(Character.forDigit(digest[i] & 0xf, 16));
+            }
+            return name.append(MappedImage.EXTENSION).toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is missing", e);
+        }
+    }
+
+    private static long sizeOf(PlanarImage image) {
+        return (long) image.getStride() * image.getHeight() * image.getChannels();
+    }
+}
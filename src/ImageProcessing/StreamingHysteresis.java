@@ -0,0 +1,95 @@
+package ImageProcessing;
+
+/**
+ * This software falls under the MIT license, as follows:
+ * Copyright (C) 2012
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * <p/>
+ * Hysteresis for images that arrive a row at a time and are too big to hold. Suppressed rows are buffered in blocks,
+ * and each block is linked together with a margin of context rows above and below it before being passed on.
+ * A weak chain is found as long as it reaches a strong pixel within the context rows of the block it sits in, so
+ * only chains that wander further than that from their strong pixel come out differently from {@link Hysteresis}.
+ * Memory is O(width * (block + 2 * context)) no matter how tall the image is.
+ */
+public class StreamingHysteresis implements RowSink {
+    private final int width;
+    private final int height;
+    private final int context;
+    private final int block;
+    private final RowSink sink;
+    private final Hysteresis hysteresis;
+    private final byte[] window;
+    private final byte[] linked;
+    private final byte[] row;
+
+    // The window holds image rows [windowStart, windowStart + filled)
+    private int windowStart;
+    private int filled;
+    private int nextEmitted;
+    private int linkedPixels;
+
+    public StreamingHysteresis(int width, int height, int lowThreshold, int highThreshold, int context, RowSink sink) {
+        this.width = width;
+        this.height = height;
+        this.context = context;
+        this.block = Math.max(1, 2 * context);
+        this.sink = sink;
+        this.hysteresis = new Hysteresis(lowThreshold, highThreshold);
+        int capacity = Math.min(height, block + 2 * context);
+        this.window = new byte[capacity * width];
+        this.linked = new byte[capacity * width];
+        this.row = new byte[width];
+    }
+
+    @Override
+    public void acceptRow(int y, byte[] nonMaxRow) {
+        if (y != windowStart + filled) {
+            throw new IllegalStateException("Expected row " + (windowStart + filled) + " but got row " + y);
+        }
+        System.arraycopy(nonMaxRow, 0, window, filled * width, width);
+        filled++;
+        while (nextEmitted < height && windowStart + filled >= Math.min(nextEmitted + block + context, height)) {
+            emitBlock();
+        }
+    }
+
+    private void emitBlock() {
+        PlanarImage in = new PlanarImage(width, filled, width, new byte[][]{window});
+        PlanarImage out = new PlanarImage(width, filled, width, new byte[][]{linked});
+        hysteresis.apply(in, out);
+        linkedPixels += hysteresis.getLinkedPixelCount();
+
+        int end = Math.min(nextEmitted + block, height);
+        for (int y = nextEmitted; y < end; y++) {
+            System.arraycopy(linked, (y - windowStart) * width, row, 0, width);
+            sink.acceptRow(y, row);
+        }
+        nextEmitted = end;
+
+        // Keep the context rows above the next block around
+        int keepFrom = Math.max(windowStart, nextEmitted - context);
+        int dropped = keepFrom - windowStart;
+        filled -= dropped;
+        System.arraycopy(window, dropped * width, window, 0, filled * width);
+        windowStart = keepFrom;
+    }
+
+    /**
+     * The weak pixels linked to edges so far. Pixels in the context margins may be counted by more than one block.
+     */
+    public int getLinkedPixelCount() {
+        return linkedPixels;
+    }
+}
@@ -0,0 +1,649 @@
+package ImageProcessing;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Vector;
+
+/**
+ * This software falls under the MIT license, as follows:
+ * Copyright (C) 2012
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * <p/>
+ * Runs convolution, Sobel or Canny over images too big to load. The source is pulled from an ImageReader a strip of
+ * rows at a time with ImageReadParam.setSourceRegion, only the rows the operator still needs are kept, and the
+ * result is handed to an ImageWriter as an image whose rows are computed as the writer asks for them. Peak memory
+ * is O(width * (strip + operator window)) rather than O(width * height).
+ * <p/>
+ * Writers that pull their input a row or strip at a time (PNG, TIFF) stream end to end. Writers that ask for the
+ * whole raster at once, like JPEG, still work but will materialise the output. Likewise readers that can seek
+ * (TIFF) read each strip directly, while PNG and JPEG readers decode from the top of the file for every strip.
+ * <p/>
+ * Either end can be a {@link MappedImage} raw file instead. Canny between two raw files spills its suppressed
+ * gradients to a mapped scratch file and runs exact hysteresis over it.
+ * <p/>
+ * Usage: StripProcessor input output [-op sobel|smooth:sigma|canny:sigma:low:high] [-strip rows] [-format png]
+ *        StripProcessor -import image output.raw
+ */
+public class StripProcessor {
+    public static final int DEFAULT_STRIP_ROWS = 256;
+    public static final int DEFAULT_HYSTERESIS_CONTEXT = 64;
+
+    private final StripOperator operator;
+    private final int stripRows;
+
+    public StripProcessor(StripOperator operator, int stripRows) {
+        if (stripRows < 1) {
+            throw new IllegalArgumentException("Strips need at least one row");
+        }
+        this.operator = operator;
+        this.stripRows = stripRows;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 3 && args[0].equals("-import")) {
+            MappedImage.importImage(new File(args[1]), new File(args[2]), DEFAULT_STRIP_ROWS).close();
+            return;
+        }
+        if (args.length < 2 || args[0].startsWith("-") || args[1].startsWith("-")) {
+            usage(null);
+        }
+        String op = "canny:1.4:25:70";
+        String format = "png";
+        int strip = DEFAULT_STRIP_ROWS;
+        for (int i = 2; i < args.length; i += 2) {
+            if (!args[i].equals("-op") && !args[i].equals("-strip") && !args[i].equals("-format")) {
+                usage("Unknown argument " + args[i]);
+            }
+            if (i + 1 == args.length) {
+                usage(args[i] + " needs a value");
+            }
+            if (args[i].equals("-op")) {
+                op = args[i + 1];
+            } else if (args[i].equals("-strip")) {
+                try {
+                    strip = Integer.parseInt(args[i + 1]);
+                } catch (NumberFormatException e) {
+                    strip = 0;
+                }
+                if (strip < 1) {
+                    usage("-strip needs a positive number of rows, got " + args[i + 1]);
+                }
+            } else {
+                format = args[i + 1];
+            }
+        }
+        String[] parts = op.split(":");
+        int maxParts = parts[0].equals("canny") ? 4 : parts[0].equals("smooth") ? 2 : 1;
+        if (parts.length > maxParts) {
+            usage("Too many parameters for " + parts[0] + ": " + op);
+        }
+        float sigma = 1.4f;
+        int low = 25;
+        int high = 70;
+        try {
+            if (parts.length > 1) {
+                sigma = Float.parseFloat(parts[1]);
+            }
+            if (parts.length > 2) {
+                low = Integer.parseInt(parts[2]);
+            }
+            if (parts.length > 3) {
+                high = Integer.parseInt(parts[3]);
+            }
+        } catch (NumberFormatException e) {
+            usage("Parameters for " + parts[0] + " have to be numbers: " + op);
+        }
+        if (!(sigma > 0) || Float.isInfinite(sigma)) {
+            usage("Sigma must be positive: " + op);
+        }
+        if (low < 0 || high < low) {
+            usage("Thresholds need 0 <= low <= high: " + op);
+        }
+        StripOperator operator;
+        if (parts[0].equals("sobel")) {
+            operator = sobel();
+        } else if (parts[0].equals("smooth")) {
+            float[] kernel = PlanarImage.generateGaussianKernel1D(sigma);
+            float[][] filter = new float[kernel.length][kernel.length];
+            for (int x = 0; x < kernel.length; x++) {
+                for (int y = 0; y < kernel.length; y++) {
+                    filter[x][y] = kernel[x] * kernel[y];
+                }
+            }
+            // Like smoothGaussian, replicate the border rather than leaving a dark band down the left edge
+            operator = convolve(filter, BoundaryPolicies.BoundaryReplication);
+        } else if (parts[0].equals("canny")) {
+            operator = canny(sigma, low, high, DEFAULT_HYSTERESIS_CONTEXT);
+        } else {
+            usage("Unknown operation " + op);
+            return;
+        }
+        long start = System.nanoTime();
+        File input = new File(args[0]);
+        File output = new File(args[1]);
+        StripProcessor processor = new StripProcessor(operator, strip);
+        StripSource source = input.getName().endsWith(MappedImage.EXTENSION) ? MappedImage.open(input, false) :
+                new ReaderSource(input);
+        try {
+            if (!output.getName().endsWith(MappedImage.EXTENSION)) {
+                processor.write(source, output, format);
+            } else {
+                MappedImage result = MappedImage.create(output, source.getWidth(), source.getHeight(), 1);
+                try {
+                    if (parts[0].equals("canny") && source instanceof MappedImage) {
+                        detectEdgesCanny((MappedImage) source, result, new File(output.getPath() + ".nonmax"), sigma,
+                                low, high, strip);
+                    } else {
+                        processor.process(source, result);
+                    }
+                    result.force();
+                } finally {
+                    result.close();
+                }
+            }
+        } finally {
+            ((Closeable) source).close();
+        }
+        System.out.println(String.format("Done in %.2f s", (System.nanoTime() - start) / 1e9));
+    }
+
+    /**
+     * Reads the first image in input strip by strip, and writes the single channel result to output.
+     */
+    public void process(File input, File output, String format) throws IOException {
+        ReaderSource source = new ReaderSource(input);
+        try {
+            write(source, output, format);
+        } finally {
+            source.close();
+        }
+    }
+
+    /**
+     * Runs the operator over the source strip by strip, and encodes the single channel result to output.
+     */
+    public void write(StripSource source, File output, String format) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+        if (!writers.hasNext()) {
+            throw new IOException("No image writer for format " + format);
+        }
+        ImageWriter writer = writers.next();
+        ImageOutputStream out = null;
+        try {
+            if (output.exists() && !output.delete()) {
+                throw new IOException("Can't replace " + output);
+            }
+            out = ImageIO.createImageOutputStream(output);
+            writer.setOutput(out);
+            try {
+                writer.write(new StripImage(source));
+            } catch (StripReadException e) {
+                // Reads happen inside the writer's calls to getData, which can't throw checked exceptions
+                throw e.getCause();
+            }
+        } finally {
+            writer.dispose();
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Runs the operator over the source strip by strip, handing every result row to dest. Pass a
+     * {@link MappedImage} as dest to write the result straight into a raw file.
+     */
+    public void process(StripSource source, RowSink dest) throws IOException {
+        int height = source.getHeight();
+        operator.begin(source.getWidth(), height, dest);
+        for (int y = 0; y < height; y += stripRows) {
+            operator.pushStrip(source.readStrip(y, Math.min(stripRows, height - y)), y);
+        }
+    }
+
+    /**
+     * Runs the fused Canny detector from one raw image to another. Rather than approximating hysteresis with
+     * {@link StreamingHysteresis}, the suppressed gradients are spilled to a mapped scratch file and hysteresis runs
+     * exactly over the whole of it, so neither full size stage ever touches the heap.
+     */
+    public static void detectEdgesCanny(MappedImage source, MappedImage output, File scratch, float sigma,
+                                        int lowThreshold, int highThreshold, int stripRows) throws IOException {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        MappedImage nonMax = MappedImage.create(scratch, width, height, 1);
+        try {
+            CannyDetector detector = new CannyDetector(sigma, lowThreshold, highThreshold);
+            detector.begin(width, height);
+            for (int y = 0; y < height; y += stripRows) {
+                PlanarImage strip = source.readStrip(y, Math.min(stripRows, height - y));
+                for (int row = 0; row < strip.getHeight(); row++) {
+                    detector.pushRow(strip, row, nonMax);
+                }
+            }
+            new Hysteresis(lowThreshold, highThreshold).apply(nonMax.getPlane(0), width, output.getPlane(0), width,
+                    width, height);
+        } finally {
+            nonMax.close();
+            if (!scratch.delete()) {
+                scratch.deleteOnExit();
+            }
+        }
+    }
+
+    private static void usage(String problem) {
+        if (problem != null) {
+            System.err.println(problem);
+        }
+        System.err.println("Usage: StripProcessor input output [-op sobel|smooth:sigma|canny:sigma:low:high] " +
+                "[-strip rows] [-format png]");
+        System.err.println("       StripProcessor -import image output.raw");
+        System.exit(2);
+    }
+
+    /**
+     * Convolves a strip at a time. PeriodicRepetition isn't supported, as it wraps around to the far side of the
+     * image, which isn't there when a strip is convolved.
+     * <p/>
+     * Whether to go through the FFT is decided from the size of the whole image, the same as
+     * {@link PlanarImage#convolveImage} decides it, and the FFT's tiles are laid out on the whole image's grid. A tile
+     * rounds its sums differently depending on everything in it, so when the FFT is used each window carries a tile's
+     * worth of rows on top of the kernel's radius, which keeps every emitted row's tiles inside the window.
+     */
+    public static StripOperator convolve(final float[][] filter, final BoundaryPolicies p) {
+        if (p == BoundaryPolicies.PeriodicRepetition) {
+            throw new IllegalArgumentException("PeriodicRepetition needs the whole image, it can't be used in strips");
+        }
+        final float[][] factors = PlanarImage.separateKernel(filter);
+        return new WindowedOperator(filter.length / 2) {
+            private FFTConvolver fft;
+
+            int halo(int width, int height) {
+                fft = FFTConvolver.choose(filter, factors != null, width, height);
+                return fft == null ? filter.length / 2 : filter.length / 2 + fft.getBlock();
+            }
+
+            PlanarImage apply(PlanarImage window, int firstRow) {
+                return PlanarImage.convolveWindow(window, filter, factors, fft, p, firstRow);
+            }
+        };
+    }
+
+    public static StripOperator sobel() {
+        return new WindowedOperator(1) {
+            PlanarImage apply(PlanarImage window, int firstRow) {
+                return Image.detectEdgesSobel(window);
+            }
+        };
+    }
+
+    /**
+     * Streams through a {@link CannyDetector} and {@link StreamingHysteresis}.
+     *
+     * @param context How many rows above and below a block hysteresis may follow an edge to find a strong pixel
+     */
+    public static StripOperator canny(float sigma, final int lowThreshold, final int highThreshold, final int context) {
+        final CannyDetector detector = new CannyDetector(sigma, lowThreshold, highThreshold);
+        return new StripOperator() {
+            private RowSink hysteresis;
+
+            public void begin(int width, int height, RowSink sink) {
+                detector.begin(width, height);
+                hysteresis = new StreamingHysteresis(width, height, lowThreshold, highThreshold, context, sink);
+            }
+
+            public void pushStrip(PlanarImage strip, int firstRow) {
+                for (int y = 0; y < strip.getHeight(); y++) {
+                    detector.pushRow(strip, y, hysteresis);
+                }
+            }
+        };
+    }
+
+    /**
+     * Somewhere strips of an image can be read from, in any order.
+     */
+    public interface StripSource {
+        int getWidth();
+
+        int getHeight();
+
+        PlanarImage readStrip(int y, int rows) throws IOException;
+    }
+
+    /**
+     * Reads strips of the first image in a file with ImageReadParam.setSourceRegion.
+     */
+    public static class ReaderSource implements StripSource, Closeable {
+        private final ImageInputStream in;
+        private final ImageReader reader;
+        private final int width;
+        private final int height;
+
+        public ReaderSource(File file) throws IOException {
+            in = ImageIO.createImageInputStream(file);
+            if (in == null) {
+                throw new IOException("Can't open " + file);
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                in.close();
+                throw new IOException("No image reader understands " + file);
+            }
+            reader = readers.next();
+            // Not seek forward only, as some readers go back to the start of the image data for every strip
+            reader.setInput(in, false, true);
+            width = reader.getWidth(0);
+            height = reader.getHeight(0);
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public PlanarImage readStrip(int y, int rows) throws IOException {
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceRegion(new Rectangle(0, y, width, rows));
+            return PlanarImage.fromBufferedImage(reader.read(0, param));
+        }
+
+        public void close() throws IOException {
+            reader.dispose();
+            in.close();
+        }
+    }
+
+    /**
+     * Consumes an image a strip at a time, top to bottom, and emits single channel result rows in order. Rows may
+     * come out some way behind the strips that produced them, but all of them will have come out by the last strip.
+     */
+    public interface StripOperator {
+        void begin(int width, int height, RowSink sink);
+
+        void pushStrip(PlanarImage strip, int firstRow);
+    }
+
+    /**
+     * Runs a whole-image operator over each strip plus halo rows of context on either side. Only rows whose whole
+     * neighbourhood was in the window are emitted, so the output matches running the operator on the full image.
+     */
+    private abstract static class WindowedOperator implements StripOperator {
+        private final int defaultHalo;
+        private int halo;
+        private int width;
+        private int height;
+        private RowSink sink;
+        private byte[][] carry;
+        private int carryRows;
+        private int nextEmitted;
+        private byte[] row;
+
+        WindowedOperator(int halo) {
+            this.defaultHalo = halo;
+        }
+
+        /**
+         * The rows of context needed on either side of an emitted row, for an image of this size.
+         */
+        int halo(int width, int height) {
+            return defaultHalo;
+        }
+
+        /**
+         * @param firstRow The row of the whole image that the window starts at
+         */
+        abstract PlanarImage apply(PlanarImage window, int firstRow);
+
+        public void begin(int width, int height, RowSink sink) {
+            this.halo = halo(width, height);
+            this.width = width;
+            this.height = height;
+            this.sink = sink;
+            this.carry = null;
+            this.carryRows = 0;
+            this.nextEmitted = 0;
+            this.row = new byte[width];
+        }
+
+        public void pushStrip(PlanarImage strip, int firstRow) {
+            int channels = strip.getChannels();
+            int windowRows = carryRows + strip.getHeight();
+            byte[][] planes = new byte[channels][windowRows * width];
+            for (int c = 0; c < channels; c++) {
+                if (carryRows > 0) {
+                    System.arraycopy(carry[c], 0, planes[c], 0, carryRows * width);
+                }
+                for (int y = 0; y < strip.getHeight(); y++) {
+                    System.arraycopy(strip.getPlane(c), y * strip.getStride(), planes[c], (carryRows + y) * width, width);
+                }
+            }
+            int windowStart = firstRow - carryRows;
+            int windowEnd = firstRow + strip.getHeight();
+            PlanarImage result = apply(new PlanarImage(width, windowRows, width, planes), windowStart);
+
+            int last = windowEnd == height ? windowEnd : windowEnd - halo;
+            for (int y = nextEmitted; y < last; y++) {
+                System.arraycopy(result.getPlane(0), (y - windowStart) * result.getStride(), row, 0, width);
+                sink.acceptRow(y, row);
+            }
+            nextEmitted = Math.max(nextEmitted, last);
+
+            // The next window needs the halo above its first unemitted row
+            int keepFrom = Math.max(windowStart, Math.min(nextEmitted - halo, windowEnd));
+            carryRows = windowEnd - keepFrom;
+            carry = new byte[channels][carryRows * width];
+            for (int c = 0; c < channels; c++) {
+                System.arraycopy(planes[c], (keepFrom - windowStart) * width, carry[c], 0, carryRows * width);
+            }
+        }
+    }
+
+    /**
+     * The single channel output, computed as the writer asks for it. Rows must be asked for in order, and each row
+     * can only be asked for once.
+     */
+    private class StripImage implements RenderedImage, RowSink {
+        private final StripSource source;
+        private final int width;
+        private final int height;
+        private final ColorModel colorModel;
+        private final SampleModel sampleModel;
+        private final ArrayDeque<byte[]> pending = new ArrayDeque<byte[]>();
+        private final ArrayDeque<byte[]> spare = new ArrayDeque<byte[]>();
+        private int nextRead;
+        private int nextEmitted;
+        private int nextReturned;
+
+        StripImage(StripSource source) {
+            this.source = source;
+            this.width = source.getWidth();
+            this.height = source.getHeight();
+            this.colorModel = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_GRAY), false, false,
+                    Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+            this.sampleModel = new PixelInterleavedSampleModel(DataBuffer.TYPE_BYTE, width, stripRows, 1, width,
+                    new int[]{0});
+            operator.begin(width, height, this);
+        }
+
+        public void acceptRow(int y, byte[] row) {
+            byte[] copy = spare.isEmpty() ? new byte[width] : spare.pop();
+            System.arraycopy(row, 0, copy, 0, width);
+            pending.add(copy);
+            nextEmitted = y + 1;
+        }
+
+        private void readStrip() {
+            int rows = Math.min(stripRows, height - nextRead);
+            PlanarImage strip;
+            try {
+                strip = source.readStrip(nextRead, rows);
+            } catch (IOException e) {
+                throw new StripReadException(e);
+            }
+            operator.pushStrip(strip, nextRead);
+            nextRead += rows;
+        }
+
+        public Raster getData(Rectangle rect) {
+            Rectangle bounds = rect.intersection(getBounds());
+            if (bounds.y != nextReturned) {
+                throw new IllegalStateException("Rows must be read in order, expected row " + nextReturned +
+                        " but was asked for row " + bounds.y);
+            }
+            int end = bounds.y + bounds.height;
+            while (nextEmitted < end) {
+                if (nextRead >= height) {
+                    throw new IllegalStateException("The operator only produced " + nextEmitted + " rows");
+                }
+                readStrip();
+            }
+            byte[] data = new byte[bounds.width * bounds.height];
+            for (int y = 0; y < bounds.height; y++) {
+                byte[] row = pending.pop();
+                System.arraycopy(row, bounds.x, data, y * bounds.width, bounds.width);
+                spare.push(row);
+            }
+            nextReturned = end;
+            SampleModel sm = new PixelInterleavedSampleModel(DataBuffer.TYPE_BYTE, bounds.width, bounds.height, 1,
+                    bounds.width, new int[]{0});
+            return Raster.createWritableRaster(sm, new DataBufferByte(data, data.length),
+                    new Point(bounds.x, bounds.y));
+        }
+
+        private Rectangle getBounds() {
+            return new Rectangle(0, 0, width, height);
+        }
+
+        public Raster getData() {
+            return getData(getBounds());
+        }
+
+        public WritableRaster copyData(WritableRaster raster) {
+            Raster data = getData(raster.getBounds());
+            raster.setRect(data);
+            return raster;
+        }
+
+        public Raster getTile(int tileX, int tileY) {
+            return getData(new Rectangle(0, tileY * stripRows, width, stripRows));
+        }
+
+        public Vector<RenderedImage> getSources() {
+            return null;
+        }
+
+        public Object getProperty(String name) {
+            return java.awt.Image.UndefinedProperty;
+        }
+
+        public String[] getPropertyNames() {
+            return null;
+        }
+
+        public ColorModel getColorModel() {
+            return colorModel;
+        }
+
+        public SampleModel getSampleModel() {
+            return sampleModel;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public int getMinX() {
+            return 0;
+        }
+
+        public int getMinY() {
+            return 0;
+        }
+
+        public int getNumXTiles() {
+            return 1;
+        }
+
+        public int getNumYTiles() {
+            return (height + stripRows - 1) / stripRows;
+        }
+
+        public int getMinTileX() {
+            return 0;
+        }
+
+        public int getMinTileY() {
+            return 0;
+        }
+
+        public int getTileWidth() {
+            return width;
+        }
+
+        public int getTileHeight() {
+            return stripRows;
+        }
+
+        public int getTileGridXOffset() {
+            return 0;
+        }
+
+        public int getTileGridYOffset() {
+            return 0;
+        }
+    }
+
+    private static class StripReadException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        StripReadException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+}
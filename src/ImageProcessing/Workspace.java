@@ -0,0 +1,185 @@
+package ImageProcessing;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * This software falls under the MIT license, as follows:
+ * Copyright (C) 2012
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * <p/>
+ * Scratch images and buffers that the edge detectors reuse from one call to the next, so a steady stream of frames
+ * of the same size allocates nothing once the first frame has been through. Images are pooled by their dimensions:
+ * {@link #acquire} hands back an idle image of the right size if there is one and only allocates when there isn't,
+ * and {@link #release} returns it to the pool. Acquired images hold whatever the last user left in them.
+ * <p/>
+ * A workspace isn't thread safe. Each thread should hold its own, which is what {@link #forCurrentThread} is for.
+ */
+public class Workspace {
+    private static final ThreadLocal<Workspace> PER_THREAD = new ThreadLocal<Workspace>() {
+        @Override
+        protected Workspace initialValue() {
+            return new Workspace();
+        }
+    };
+
+    private final long maxIdleBytes;
+    private PlanarImage[] idle = new PlanarImage[8];
+    private int idleCount;
+    private long idleBytes;
+    private float[] floats = new float[0];
+    private Hysteresis hysteresis;
+    private float gaussianSigma = Float.NaN;
+    private float[][] gaussianKernel;
+    private final Map<float[][], float[][]> factors = new IdentityHashMap<float[][], float[][]>();
+    private int allocations;
+
+    public Workspace() {
+        this(Long.MAX_VALUE);
+    }
+
+    /**
+     * @param maxIdleBytes Images released once the pool already holds this many bytes of idle images are dropped
+     *                     rather than kept, which bounds the memory held when frame sizes keep changing
+     */
+    public Workspace(long maxIdleBytes) {
+        this.maxIdleBytes = maxIdleBytes;
+    }
+
+    /**
+     * The calling thread's workspace, created the first time each thread asks for it.
+     */
+    public static Workspace forCurrentThread() {
+        return PER_THREAD.get();
+    }
+
+    /**
+     * Takes an idle image with these dimensions out of the pool, or allocates one if there isn't one.
+     */
+    public PlanarImage acquire(int width, int height, int channels) {
+        for (int i = idleCount - 1; i >= 0; i--) {
+            PlanarImage image = idle[i];
+            if (image.getWidth() == width && image.getHeight() == height && image.getChannels() == channels) {
+                idle[i] = idle[--idleCount];
+                idle[idleCount] = null;
+                idleBytes -= sizeOf(image);
+                return image;
+            }
+        }
+        allocations++;
+        return new PlanarImage(width, height, channels);
+    }
+
+    /**
+     * Hands an image back to the pool. It mustn't be used again until it's acquired again.
+     */
+    public void release(PlanarImage image) {
+        if (image == null || idleBytes + sizeOf(image) > maxIdleBytes) {
+            return;
+        }
+        if (idleCount == idle.length) {
+            PlanarImage[] grown = new PlanarImage[idle.length * 2];
+            System.arraycopy(idle, 0, grown, 0, idleCount);
+            idle = grown;
+        }
+        idle[idleCount++] = image;
+        idleBytes += sizeOf(image);
+    }
+
+    /**
+     * A float buffer at least length long, shared by every caller of this workspace. Its contents are undefined.
+     */
+    float[] floats(int length) {
+        if (floats.length < length) {
+            allocations++;
+            floats = new float[length];
+        }
+        return floats;
+    }
+
+    /**
+     * A hysteresis stage for these thresholds. Its edge stack keeps the size the biggest frame so far grew it to.
+     */
+    Hysteresis hysteresis(int lowThreshold, int highThreshold) {
+        if (hysteresis == null || hysteresis.getLowThreshold() != lowThreshold
+                || hysteresis.getHighThreshold() != highThreshold) {
+            allocations++;
+            hysteresis = new Hysteresis(lowThreshold, highThreshold);
+        }
+        return hysteresis;
+    }
+
+    /**
+     * The same kernel as {@link Image#generateGaussianKernel}, kept until a different sigma is asked for.
+     */
+    float[][] gaussianKernel(float sigma) {
+        if (gaussianKernel == null || Float.compare(sigma, gaussianSigma) != 0) {
+            allocations++;
+            gaussianKernel = Image.generateGaussianKernel(sigma);
+            gaussianSigma = sigma;
+        }
+        return gaussianKernel;
+    }
+
+    /**
+     * The separable factors of a kernel as {@link PlanarImage#separateKernel} finds them, worked out once per kernel
+     * array. The kernel mustn't be changed after it's first passed in.
+     */
+    float[][] separateKernel(float[][] filter) {
+        if (factors.containsKey(filter)) {
+            return factors.get(filter);
+        }
+        allocations++;
+        float[][] separated = PlanarImage.separateKernel(filter);
+        if (factors.size() > 16) {
+            factors.clear();
+        }
+        factors.put(filter, separated);
+        return separated;
+    }
+
+    /**
+     * Drops every idle image and buffer, leaving the workspace as it was when created.
+     */
+    public void clear() {
+        for (int i = 0; i < idleCount; i++) {
+            idle[i] = null;
+        }
+        idleCount = 0;
+        idleBytes = 0;
+        floats = new float[0];
+        hysteresis = null;
+        gaussianKernel = null;
+        factors.clear();
+    }
+
+    /**
+     * The bytes held by images sitting idle in the pool.
+     */
+    public long getIdleBytes() {
+        return idleBytes;
+    }
+
+    /**
+     * How many times the workspace has had to allocate, which stops climbing once it has warmed up.
+     */
+    public int getAllocationCount() {
+        return allocations;
+    }
+
+    private static long sizeOf(PlanarImage image) {
+        return (long) image.getStride() * image.getHeight() * image.getChannels();
+    }
+}
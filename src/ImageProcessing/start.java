@@ -1,5 +1,7 @@
 package ImageProcessing;
 
+import javax.swing.SwingUtilities;
+
 /**
  * This software falls under the MIT license, as follows:
  * Copyright (C) 2012
@@ -21,7 +23,17 @@ package ImageProcessing;
  * Date: 12/8/12
  */
 public class start {
-    public static void main(String[] args){
-        MainForm form = new MainForm();
+    public static void main(String[] args) throws Exception {
+        // Any arguments mean we're running headless, see BatchProcessor for what they are
+        if (args.length > 0) {
+            BatchProcessor.main(args);
+            return;
+        }
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                new MainForm();
+            }
+        });
     }
 }
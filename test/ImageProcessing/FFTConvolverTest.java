@@ -0,0 +1,162 @@
+package ImageProcessing;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * This software falls under the MIT license, as follows:
+ * Copyright (C) 2012
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * <p/>
+ * Checks the FFT against the direct loops, which it has to match to within one gray level under every boundary policy,
+ * and checks that splitting the rows into bands, as the parallel and strip paths do, doesn't change a single pixel.
+ */
+public class FFTConvolverTest {
+    private static final int[] KERNEL_SIZES = {15, 31};
+    // Odd and even, and neither a multiple of any tile's block
+    private static final int[][] IMAGE_SIZES = {{97, 71}, {96, 70}, {131, 40}};
+
+    @Test
+    public void matchesDirectLoopsUnderEveryPolicy() {
+        for (int k : KERNEL_SIZES) {
+            float[][] filter = randomKernel(k);
+            for (int[] size : IMAGE_SIZES) {
+                PlanarImage image = randomImage(size[0], size[1], 1);
+                for (BoundaryPolicies p : BoundaryPolicies.values()) {
+                    PlanarImage direct = PlanarImage.convolveWindow(image, filter, PlanarImage.separateKernel(filter),
+                            null, p, 0);
+                    String what = k + "x" + k + " over " + size[0] + "x" + size[1] + " with " + p;
+                    int empty = p == BoundaryPolicies.None ? k / 2 : 0;
+                    assertClose(what + ", cheapest tile", direct, FFTConvolver.convolveImage(image, filter, p), empty);
+                    for (int tile = 64; tile <= 128; tile *= 2) {
+                        if (tile >= 2 * k) {
+                            assertClose(what + ", " + tile + " tile", direct, convolve(image, filter, p, tile), empty);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Tiles are paired up across channels, so every channel has to come out as it would on its own.
+     */
+    @Test
+    public void channelsMatchDirectLoopsOneByOne() {
+        PlanarImage image = randomImage(75, 50, 3);
+        float[][] filter = randomKernel(15);
+        for (BoundaryPolicies p : BoundaryPolicies.values()) {
+            PlanarImage fft = new PlanarImage(image.getWidth(), image.getHeight(), 3);
+            new FFTConvolver(filter, 64).convolveRows(image, p, new int[]{0, 1, 2}, fft, 0, image.getHeight(), 0);
+            for (int c = 0; c < 3; c++) {
+                PlanarImage plane = new PlanarImage(image.getWidth(), image.getHeight(), image.getStride(),
+                        new byte[][]{image.getPlane(c)});
+                PlanarImage direct = PlanarImage.convolveWindow(plane, filter, null, null, p, 0);
+                PlanarImage fftPlane = new PlanarImage(fft.getWidth(), fft.getHeight(), fft.getStride(),
+                        new byte[][]{fft.getPlane(c)});
+                assertClose("Channel " + c + " with " + p, direct, fftPlane, p == BoundaryPolicies.None ? 7 : 0);
+            }
+        }
+    }
+
+    @Test
+    public void bandsAreCutIntoTheSameTilesAsTheWholeImage() {
+        PlanarImage image = randomImage(97, 90, 1);
+        FFTConvolver fft = new FFTConvolver(randomKernel(31), 64);
+        for (BoundaryPolicies p : BoundaryPolicies.values()) {
+            PlanarImage whole = new PlanarImage(image.getWidth(), image.getHeight(), 1);
+            fft.convolveRows(image, p, new int[]{0}, whole, 0, image.getHeight(), 0);
+            for (int band : new int[]{1, 17, 34, 50}) {
+                PlanarImage banded = new PlanarImage(image.getWidth(), image.getHeight(), 1);
+                for (int y = 0; y < image.getHeight(); y += band) {
+                    fft.convolveRows(image, p, new int[]{0}, banded, y, Math.min(y + band, image.getHeight()), 0);
+                }
+                assertArrayEquals(band + " row bands with " + p, whole.getPlane(0), banded.getPlane(0));
+            }
+        }
+    }
+
+    @Test
+    public void parallelMatchesSequentialWhenTheFftIsChosen() {
+        PlanarImage image = randomImage(401, 301, 1);
+        float[][] filter = randomKernel(31);
+        assertNotNull("The cost model should pick the FFT for this kernel",
+                PlanarImage.chooseConvolver(image, filter, PlanarImage.separateKernel(filter)));
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (BoundaryPolicies p : BoundaryPolicies.values()) {
+                assertArrayEquals(p.toString(), PlanarImage.convolveImage(image, filter, p).getPlane(0),
+                        PlanarImage.convolveImage(image, filter, p, pool).getPlane(0));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static PlanarImage convolve(PlanarImage image, float[][] filter, BoundaryPolicies p, int tile) {
+        PlanarImage output = new PlanarImage(image.getWidth(), image.getHeight(), 1);
+        new FFTConvolver(filter, tile).convolveRows(image, p, new int[]{0}, output, 0, image.getHeight(), 0);
+        return output;
+    }
+
+    /**
+     * Within one gray level everywhere, and nothing at all in the first emptyColumns columns, which None leaves empty.
+     */
+    private static void assertClose(String what, PlanarImage expected, PlanarImage actual, int emptyColumns) {
+        assertEquals(what, expected.getWidth(), actual.getWidth());
+        assertEquals(what, expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                int e = expected.getPixel(0, x, y);
+                int a = actual.getPixel(0, x, y);
+                assertTrue(what + " at " + x + "," + y + ": expected " + e + ", was " + a, Math.abs(e - a) <= 1);
+                if (x < emptyColumns) {
+                    assertEquals(what + " at " + x + "," + y, 0, e);
+                    assertEquals(what + " at " + x + "," + y, 0, a);
+                }
+            }
+        }
+    }
+
+    /**
+     * No structure to it, so the direct loops can't take the separable route.
+     */
+    private static float[][] randomKernel(int size) {
+        Random random = new Random(size);
+        float[][] kernel = new float[size][size];
+        for (int x = 0; x < size; x++) {
+            for (int y = 0; y < size; y++) {
+                kernel[x][y] = random.nextFloat();
+            }
+        }
+        return kernel;
+    }
+
+    private static PlanarImage randomImage(int width, int height, int channels) {
+        PlanarImage image = new PlanarImage(width, height, channels);
+        Random random = new Random(width * 31 + height);
+        for (int c = 0; c < channels; c++) {
+            random.nextBytes(image.getPlane(c));
+        }
+        return image;
+    }
+}
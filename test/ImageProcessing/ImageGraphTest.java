@@ -0,0 +1,127 @@
+package ImageProcessing;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * This software falls under the MIT license, as follows:
+ * Copyright (C) 2012
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * <p/>
+ * Checks graphs against running the same operations one at a time through {@link PlanarImage}.
+ */
+public class ImageGraphTest {
+    private static final float[][] BLUR = {{1, 2, 1}, {2, 4, 2}, {1, 2, 1}};
+
+    /**
+     * grayScale reaches add both directly and through a convolution, so it has to stay materialised until add has
+     * read it, even though the convolution is done with it first.
+     */
+    @Test
+    public void diamondKeepsSharedPointwiseNodeUntilLastReader() {
+        PlanarImage image = randomImage(67, 41, 3);
+        ImageGraph g = new ImageGraph();
+        ImageGraph.Node gray = g.grayScale(g.source(image));
+        ImageGraph.Node sum = g.add(gray, g.convolve(gray, BLUR, BoundaryPolicies.BoundaryReplication));
+
+        PlanarImage expectedGray = PlanarImage.convertToGrayScale(image);
+        PlanarImage expected = PlanarImage.addImages(expectedGray,
+                PlanarImage.convolveImage(expectedGray, BLUR, BoundaryPolicies.BoundaryReplication));
+        assertSamePixels(expected, g.evaluate(sum));
+    }
+
+    @Test
+    public void diamondWithSharedNodeAlsoAnOutput() {
+        PlanarImage image = randomImage(50, 30, 3);
+        ImageGraph g = new ImageGraph();
+        ImageGraph.Node gray = g.grayScale(g.source(image));
+        ImageGraph.Node sum = g.add(gray, g.convolve(gray, BLUR, BoundaryPolicies.ZeroPadding));
+        ImageGraph.Node edges = g.threshold(sum, 128);
+
+        PlanarImage[] results = g.evaluate(edges, gray, sum);
+        PlanarImage expectedGray = PlanarImage.convertToGrayScale(image);
+        PlanarImage expectedSum = PlanarImage.addImages(expectedGray,
+                PlanarImage.convolveImage(expectedGray, BLUR, BoundaryPolicies.ZeroPadding));
+        assertSamePixels(expectedGray, results[1]);
+        assertSamePixels(expectedSum, results[2]);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                assertEquals(expectedSum.getPixel(0, x, y) > 128 ? 255 : 0, results[0].getPixel(0, x, y));
+            }
+        }
+    }
+
+    @Test
+    public void cannyMatchesImage() {
+        PlanarImage image = randomImage(90, 70, 3);
+        ImageGraph g = new ImageGraph();
+        ImageGraph.Node canny = g.canny(g.source(image), 1.4f, 25, 70);
+        assertSamePixels(Image.detectEdgesCanny(image, 1.4f, 25, 70), g.evaluate(canny));
+        // Nothing is kept between evaluations, so a second one works from scratch and agrees
+        assertSamePixels(Image.detectEdgesCanny(image, 1.4f, 25, 70), g.evaluate(canny));
+    }
+
+    @Test
+    public void sharedSubexpressionsAreOneNode() {
+        ImageGraph g = new ImageGraph();
+        ImageGraph.Node source = g.source(randomImage(8, 8, 1));
+        ImageGraph.Node a = g.convolve(source, BLUR, BoundaryPolicies.None);
+        ImageGraph.Node b = g.convolve(source, new float[][]{{1, 2, 1}, {2, 4, 2}, {1, 2, 1}}, BoundaryPolicies.None);
+        assertEquals(a, b);
+        assertEquals(2, g.getNodeCount());
+    }
+
+    @Test
+    public void clearForgetsNodes() {
+        ImageGraph g = new ImageGraph();
+        ImageGraph.Node old = g.sobel(g.source(randomImage(20, 10, 1)));
+        g.clear();
+        assertEquals(0, g.getNodeCount());
+        try {
+            g.evaluate(old);
+            fail("A node from before clear() was evaluated");
+        } catch (IllegalArgumentException expected) {
+            // Nodes don't outlive the graph's memory of them
+        }
+        PlanarImage image = randomImage(20, 10, 1);
+        assertSamePixels(Image.detectEdgesSobel(image), g.evaluate(g.sobel(g.source(image))));
+    }
+
+    private static PlanarImage randomImage(int width, int height, int channels) {
+        PlanarImage image = new PlanarImage(width, height, channels);
+        Random random = new Random(width * 31 + height);
+        for (int c = 0; c < channels; c++) {
+            random.nextBytes(image.getPlane(c));
+        }
+        return image;
+    }
+
+    private static void assertSamePixels(PlanarImage expected, PlanarImage actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            byte[] expectedRow = new byte[expected.getWidth()];
+            byte[] actualRow = new byte[actual.getWidth()];
+            System.arraycopy(expected.getIntensityPlane(), y * expected.getStride(), expectedRow, 0, expectedRow.length);
+            System.arraycopy(actual.getIntensityPlane(), y * actual.getStride(), actualRow, 0, actualRow.length);
+            assertArrayEquals("Row " + y, expectedRow, actualRow);
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package ImageProcessing;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * This software falls under the MIT license, as follows:
+ * Copyright (C) 2012
+ * <p/>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is furnished to do so, subject to the
+ * following conditions:
+ * <p/>
+ * The above copyright notice and this permission notice shall be included in all copies or substantial portions of the Software.
+ * <p/>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ * <p/>
+ * Checks every operator in {@link Morphology} against working it out pixel by pixel from the element's definition,
+ * on grayscale and bit-packed images. Widths straddle word boundaries without being multiples of 64, so the packed
+ * path's shifts and partial last words are covered, and elements run from one pixel to longer than the image.
+ */
+public class MorphologyTest {
+    private static final int[][] IMAGE_SIZES = {{1, 1}, {37, 19}, {70, 13}, {129, 9}};
+    private static final int[] RECTANGLE_SIZES = {1, 2, 3, 4, 7};
+    private static final int[] LINE_LENGTHS = {1, 2, 3, 4, 5, 8, 40};
+    private static final int[] ANGLES = {Morphology.HORIZONTAL, Morphology.DIAGONAL_UP, Morphology.VERTICAL,
+            Morphology.DIAGONAL_DOWN};
+    // Mostly clear, even and mostly set, so both erosion and dilation have edges to move
+    private static final float[] DENSITIES = {0.1f, 0.5f, 0.9f};
+
+    @Test
+    public void grayscaleRectangles() {
+        for (int[] size : IMAGE_SIZES) {
+            PlanarImage image = randomImage(size[0], size[1]);
+            int[][] pixels = pixels(image);
+            for (int w : RECTANGLE_SIZES) {
+                for (int h : RECTANGLE_SIZES) {
+                    int[][] element = rectangle(w, h);
+                    String what = w + "x" + h + " rectangle over " + size[0] + "x" + size[1];
+                    assertSame("erode " + what, erode(pixels, element), Morphology.erode(image, w, h));
+                    assertSame("dilate " + what, dilate(pixels, element), Morphology.dilate(image, w, h));
+                    assertSame("open " + what, dilate(erode(pixels, element), element), Morphology.open(image, w, h));
+                    assertSame("close " + what, erode(dilate(pixels, element), element),
+                            Morphology.close(image, w, h));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void grayscaleLines() {
+        for (int[] size : IMAGE_SIZES) {
+            PlanarImage image = randomImage(size[0], size[1]);
+            int[][] pixels = pixels(image);
+            for (int length : LINE_LENGTHS) {
+                for (int angle : ANGLES) {
+                    int[][] element = line(length, angle);
+                    String what = length + " pixel line at " + angle + " over " + size[0] + "x" + size[1];
+                    assertSame("erode " + what, erode(pixels, element), Morphology.erodeLine(image, length, angle));
+                    assertSame("dilate " + what, dilate(pixels, element), Morphology.dilateLine(image, length, angle));
+                    assertSame("open " + what, dilate(erode(pixels, element), element),
+                            Morphology.openLine(image, length, angle));
+                    assertSame("close " + what, erode(dilate(pixels, element), element),
+                            Morphology.closeLine(image, length, angle));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void binaryRectangles() {
+        for (int[] size : IMAGE_SIZES) {
+            for (float density : DENSITIES) {
+                BinaryImage image = randomBinary(size[0], size[1], density);
+                int[][] pixels = pixels(image);
+                for (int w : RECTANGLE_SIZES) {
+                    for (int h : RECTANGLE_SIZES) {
+                        int[][] element = rectangle(w, h);
+                        String what = w + "x" + h + " rectangle over " + size[0] + "x" + size[1] + " at " + density;
+                        assertSame("erode " + what, erode(pixels, element), Morphology.erode(image, w, h));
+                        assertSame("dilate " + what, dilate(pixels, element), Morphology.dilate(image, w, h));
+                        assertSame("open " + what, dilate(erode(pixels, element), element),
+                                Morphology.open(image, w, h));
+                        assertSame("close " + what, erode(dilate(pixels, element), element),
+                                Morphology.close(image, w, h));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void binaryLines() {
+        for (int[] size : IMAGE_SIZES) {
+            for (float density : DENSITIES) {
+                BinaryImage image = randomBinary(size[0], size[1], density);
+                int[][] pixels = pixels(image);
+                for (int length : LINE_LENGTHS) {
+                    for (int angle : ANGLES) {
+                        int[][] element = line(length, angle);
+                        String what = length + " pixel line at " + angle + " over " + size[0] + "x" + size[1]
+                                + " at " + density;
+                        assertSame("erode " + what, erode(pixels, element),
+                                Morphology.erodeLine(image, length, angle));
+                        assertSame("dilate " + what, dilate(pixels, element),
+                                Morphology.dilateLine(image, length, angle));
+                        assertSame("open " + what, dilate(erode(pixels, element), element),
+                                Morphology.openLine(image, length, angle));
+                        assertSame("close " + what, erode(dilate(pixels, element), element),
+                                Morphology.closeLine(image, length, angle));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The element's offsets from its centre, with (length - 1) / 2 pixels before the centre along each axis.
+     */
+    private static int[][] rectangle(int width, int height) {
+        int[][] element = new int[width * height][];
+        int i = 0;
+        for (int dy = -(height - 1) / 2; dy < height - (height - 1) / 2; dy++) {
+            for (int dx = -(width - 1) / 2; dx < width - (width - 1) / 2; dx++) {
+                element[i++] = new int[]{dx, dy};
+            }
+        }
+        return element;
+    }
+
+    private static int[][] line(int length, int angle) {
+        int[][] element = new int[length][];
+        for (int i = 0; i < length; i++) {
+            int k = i - (length - 1) / 2;
+            if (angle == Morphology.HORIZONTAL) {
+                element[i] = new int[]{k, 0};
+            } else if (angle == Morphology.VERTICAL) {
+                element[i] = new int[]{0, k};
+            } else if (angle == Morphology.DIAGONAL_UP) {
+                // Up and to the right, so a row further down is a column further left
+                element[i] = new int[]{-k, k};
+            } else {
+                element[i] = new int[]{k, k};
+            }
+        }
+        return element;
+    }
+
+    /**
+     * The minimum under the element, leaving out anything off the edge.
+     */
+    private static int[][] erode(int[][] pixels, int[][] element) {
+        return extreme(pixels, element, 1, false);
+    }
+
+    /**
+     * The maximum under the element reflected, leaving out anything off the edge.
+     */
+    private static int[][] dilate(int[][] pixels, int[][] element) {
+        return extreme(pixels, element, -1, true);
+    }
+
+    private static int[][] extreme(int[][] pixels, int[][] element, int direction, boolean max) {
+        int height = pixels.length;
+        int width = pixels[0].length;
+        int[][] result = new int[height][width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int value = max ? 0 : 255;
+                for (int[] offset : element) {
+                    int sx = x + direction * offset[0];
+                    int sy = y + direction * offset[1];
+                    if (sx >= 0 && sx < width && sy >= 0 && sy < height) {
+                        value = max ? Math.max(value, pixels[sy][sx]) : Math.min(value, pixels[sy][sx]);
+                    }
+                }
+                result[y][x] = value;
+            }
+        }
+        return result;
+    }
+
+    private static void assertSame(String what, int[][] expected, PlanarImage actual) {
+        for (int y = 0; y < expected.length; y++) {
+            for (int x = 0; x < expected[y].length; x++) {
+                assertEquals(what + " at " + x + "," + y, expected[y][x], actual.getPixel(0, x, y));
+            }
+        }
+    }
+
+    private static void assertSame(String what, int[][] expected, BinaryImage actual) {
+        assertSame(what, expected, actual.toPlanarImage());
+        // Bits past the width have to stay clear, or counting set pixels and later passes would pick them up
+        int width = actual.getWidth();
+        if (width % 64 != 0) {
+            long padding = -1L << width;
+            for (int y = 0; y < actual.getHeight(); y++) {
+                long last = actual.getBits()[y * actual.getWordsPerRow() + actual.getWordsPerRow() - 1];
+                assertEquals(what + ", padding bits in row " + y, 0, last & padding);
+            }
+        }
+    }
+
+    private static int[][] pixels(PlanarImage image) {
+        int[][] pixels = new int[image.getHeight()][image.getWidth()];
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                pixels[y][x] = image.getPixel(0, x, y);
+            }
+        }
+        return pixels;
+    }
+
+    private static int[][] pixels(BinaryImage image) {
+        int[][] pixels = new int[image.getHeight()][image.getWidth()];
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                pixels[y][x] = image.get(x, y) ? 255 : 0;
+            }
+        }
+        return pixels;
+    }
+
+    private static PlanarImage randomImage(int width, int height) {
+        PlanarImage image = new PlanarImage(width, height, 1);
+        new Random(width * 31 + height).nextBytes(image.getPlane(0));
+        return image;
+    }
+
+    private static BinaryImage randomBinary(int width, int height, float density) {
+        BinaryImage image = new BinaryImage(width, height);
+        Random random = new Random(width * 31 + height + Float.floatToIntBits(density));
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.set(x, y, random.nextFloat() < density);
+            }
+        }
+        return image;
+    }
+}